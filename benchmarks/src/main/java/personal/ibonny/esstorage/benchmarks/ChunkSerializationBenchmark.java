@@ -0,0 +1,94 @@
+package personal.ibonny.esstorage.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import personal.ibonny.esstorage.models.ChunkCodec;
+import personal.ibonny.esstorage.models.ChunkModel;
+import personal.ibonny.esstorage.services.ChunkReader;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkSerializationBenchmark {
+    @Param({"json", "smile"})
+    public String format;
+
+    @Param({"none", "lz4", "deflate"})
+    public String codec;
+
+    @Param({"4096", "65536", "262144"})
+    public int chunkSize;
+
+    // Fraction of each chunk filled with repeated text, so the codecs have something to compress.
+    @Param({"0.5"})
+    public double compressible;
+
+    private ObjectMapper mapper;
+    private ChunkCodec chunkCodec;
+
+    private byte[] data;
+    private byte[] serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        // Same settings as ESService.setChunkFormat.
+        mapper = format.equals("smile")
+            ? new ObjectMapper(SmileFactory.builder().enable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT).build())
+            : new ObjectMapper();
+
+        chunkCodec = ChunkCodec.fromName(codec);
+
+        data = new byte[chunkSize];
+
+        new Random(42).nextBytes(data);
+
+        byte[] text = "the quick brown fox jumps over the lazy dog ".getBytes();
+
+        for (int i = 0; i < chunkSize * compressible; i++) {
+            data[i] = text[i % text.length];
+        }
+
+        serialized = serialize();
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ChunkModel chunk = new ChunkModel(data.clone(), data.length);
+
+        chunk.setCrc32c(ChunkReader.crc32c(data, data.length));
+
+        ChunkReader.compress(chunk, chunkCodec);
+
+        return mapper.writeValueAsBytes(chunk);
+    }
+
+    @Benchmark
+    public byte[] deserialize() throws IOException {
+        ChunkModel chunk = mapper.readValue(serialized, ChunkModel.class);
+
+        if (chunk.getCodec() != null) {
+            return chunk.getCodec().decompress(chunk.getData(), chunk.getLength());
+        }
+
+        return chunk.getData();
+    }
+}
@@ -0,0 +1,94 @@
+package personal.ibonny.esstorage.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import personal.ibonny.esstorage.chunkers.Chunker;
+import personal.ibonny.esstorage.chunkers.FastCdcChunker;
+import personal.ibonny.esstorage.chunkers.FixedSizeChunker;
+import personal.ibonny.esstorage.services.ChunkReader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkingBenchmark {
+    private static final int DATA_SIZE = 16 * 1024 * 1024;
+
+    @Param({"fixed", "cdc"})
+    public String chunker;
+
+    @Param({"4096", "65536", "262144"})
+    public int chunkSize;
+
+    private byte[] data;
+
+    @Setup
+    public void setup() {
+        data = new byte[DATA_SIZE];
+
+        new Random(42).nextBytes(data);
+    }
+
+    @Benchmark
+    public long split(Blackhole blackhole) throws IOException {
+        Chunker input = newChunker();
+
+        long bytes = 0;
+
+        byte[] chunk;
+
+        while ((chunk = input.next()) != null) {
+            blackhole.consume(chunk);
+
+            bytes += chunk.length;
+        }
+
+        return bytes;
+    }
+
+    @Benchmark
+    public long splitAndHash(Blackhole blackhole) throws IOException {
+        Chunker input = newChunker();
+
+        long bytes = 0;
+
+        byte[] chunk;
+
+        // The per-chunk work the reader thread does for dedup and integrity checks.
+        while ((chunk = input.next()) != null) {
+            blackhole.consume(ChunkReader.contentId(chunk, chunk.length));
+            blackhole.consume(ChunkReader.crc32c(chunk, chunk.length));
+
+            bytes += chunk.length;
+        }
+
+        return bytes;
+    }
+
+    private Chunker newChunker() {
+        ByteArrayInputStream input = new ByteArrayInputStream(data);
+
+        if (chunker.equals("cdc")) {
+            return new FastCdcChunker(input, Math.max(64, chunkSize / 4), chunkSize, chunkSize * 4);
+        }
+
+        return new FixedSizeChunker(input, chunkSize);
+    }
+}
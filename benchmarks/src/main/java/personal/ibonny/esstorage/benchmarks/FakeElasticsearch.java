@@ -0,0 +1,702 @@
+package personal.ibonny.esstorage.benchmarks;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+public class FakeElasticsearch implements Closeable {
+    private static final Pattern SCRIPT_COUNT = Pattern.compile("ctx\\._source\\.refs\\s*([+-])=");
+
+    static {
+        // Without this the JDK server waits on delayed ACKs, which adds tens of milliseconds to every request.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    private final ObjectMapper json = new ObjectMapper(new JsonFactory());
+    private final ObjectMapper smile = new ObjectMapper(new SmileFactory());
+
+    private final Map<String, Map<String, Map<String, Object>>> indices = new ConcurrentHashMap<>();
+    private final Map<String, Scroll> scrolls = new ConcurrentHashMap<>();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final long latencyMillis;
+
+    public FakeElasticsearch(int port, long latencyMillis) throws IOException {
+        this.latencyMillis = latencyMillis;
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+
+        executor = Executors.newFixedThreadPool(32);
+
+        server.setExecutor(executor);
+
+        server.createContext("/", this::handle);
+
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void clear() {
+        indices.clear();
+        scrolls.clear();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+
+        executor.shutdownNow();
+    }
+
+    private static class Scroll {
+        List<Object[]> hits;
+        int position;
+        int size;
+        Object sourceFilter;
+    }
+
+    private static class Response {
+        final int status;
+        final Object body;
+
+        Response(int status, Object body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        byte[] body = exchange.getRequestBody().readAllBytes();
+
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        String accept = exchange.getRequestHeaders().getFirst("Accept");
+
+        ObjectMapper in = contentType != null && contentType.contains("smile") ? smile : json;
+        ObjectMapper out = accept != null && accept.contains("smile") ? smile : json;
+
+        Response response;
+
+        try {
+            response = route(exchange.getRequestMethod(), exchange.getRequestURI().getRawPath(), query(exchange.getRequestURI().getRawQuery()), body, in);
+        } catch (Exception e) {
+            response = error(500, "exception", String.valueOf(e));
+        }
+
+        byte[] bytes = response.body == null ? new byte[0] : out.writeValueAsBytes(response.body);
+
+        exchange.getResponseHeaders().set("Content-Type", out == smile ? "application/smile" : "application/json; charset=UTF-8");
+
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(response.status, -1);
+        } else {
+            exchange.sendResponseHeaders(response.status, bytes.length == 0 ? -1 : bytes.length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+
+        exchange.close();
+    }
+
+    private static Map<String, String> query(String raw) {
+        Map<String, String> params = new HashMap<>();
+
+        if (raw == null) {
+            return params;
+        }
+
+        for (String pair : raw.split("&")) {
+            String[] kv = pair.split("=", 2);
+
+            params.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8), kv.length > 1 ? URLDecoder.decode(kv[1], StandardCharsets.UTF_8) : "");
+        }
+
+        return params;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> parse(ObjectMapper mapper, byte[] body) throws IOException {
+        if (body.length == 0) {
+            return new HashMap<>();
+        }
+
+        return mapper.readValue(body, Map.class);
+    }
+
+    private Map<String, Map<String, Object>> index(String name) {
+        return indices.computeIfAbsent(name, x -> new ConcurrentHashMap<>());
+    }
+
+    private Response route(String method, String path, Map<String, String> params, byte[] body, ObjectMapper in) throws IOException {
+        List<String> parts = Arrays.stream(path.split("/"))
+            .filter(x -> !x.isEmpty())
+            .map(x -> URLDecoder.decode(x, StandardCharsets.UTF_8))
+            .collect(Collectors.toList());
+
+        String last = parts.isEmpty() ? "" : parts.get(parts.size() - 1);
+
+        if (last.equals("_bulk")) {
+            return bulk(body, in, parts.size() == 2 ? parts.get(0) : null);
+        }
+
+        if (last.equals("_mget")) {
+            return mget(parse(in, body), parts.size() == 2 ? parts.get(0) : null);
+        }
+
+        if (parts.size() >= 2 && parts.get(0).equals("_search") && parts.get(1).equals("scroll")) {
+            Map<String, Object> request = parse(in, body);
+
+            if (method.equals("DELETE")) {
+                Object ids = request.get("scroll_id");
+
+                for (Object id : ids instanceof Collection ? (Collection<?>) ids : List.of(String.valueOf(ids))) {
+                    scrolls.remove(String.valueOf(id));
+                }
+
+                return new Response(200, Map.of("succeeded", true, "num_freed", 1));
+            }
+
+            return scrollPage(String.valueOf(request.get("scroll_id")));
+        }
+
+        if (last.equals("_search")) {
+            return search(parts.size() == 2 ? parts.get(0) : null, parse(in, body), params);
+        }
+
+        if (last.equals("_count")) {
+            return new Response(200, Map.of("count", indices.getOrDefault(parts.get(0), Map.of()).size(), "_shards", shards()));
+        }
+
+        if (parts.size() == 2 && parts.get(0).equals("_cluster") && last.equals("settings")) {
+            return new Response(200, Map.of("persistent", Map.of(), "transient", Map.of(), "defaults", Map.of("http.max_content_length", "100mb")));
+        }
+
+        if (last.equals("_refresh") || last.equals("_settings")) {
+            return new Response(200, Map.of("acknowledged", true, "_shards", shards()));
+        }
+
+        if (parts.size() == 1) {
+            return indexLevel(method, parts.get(0), parse(in, body));
+        }
+
+        if (parts.size() == 3 && (parts.get(1).equals("_doc") || parts.get(1).equals("_create") || parts.get(1).equals("_update"))) {
+            return document(method, parts.get(0), parts.get(1), parts.get(2), parse(in, body), params);
+        }
+
+        return error(400, "illegal_argument_exception", "unsupported " + method + " " + path);
+    }
+
+    private Response indexLevel(String method, String name, Map<String, Object> body) {
+        switch (method) {
+            case "HEAD":
+                return new Response(indices.containsKey(name) ? 200 : 404, null);
+            case "PUT":
+                if (indices.putIfAbsent(name, new ConcurrentHashMap<>()) != null) {
+                    return error(400, "resource_already_exists_exception", "index [" + name + "] already exists");
+                }
+
+                return new Response(200, Map.of("acknowledged", true, "shards_acknowledged", true, "index", name));
+            case "DELETE":
+                indices.remove(name);
+
+                return new Response(200, Map.of("acknowledged", true));
+            default:
+                return error(400, "illegal_argument_exception", "unsupported " + method + " /" + name);
+        }
+    }
+
+    private Response document(String method, String name, String kind, String id, Map<String, Object> body, Map<String, String> params) {
+        Map<String, Map<String, Object>> docs = index(name);
+
+        switch (method) {
+            case "HEAD":
+                return new Response(docs.containsKey(id) ? 200 : 404, null);
+            case "GET": {
+                Map<String, Object> source = docs.get(id);
+
+                if (source == null) {
+                    return new Response(404, Map.of("_index", name, "_type", "_doc", "_id", id, "found", false));
+                }
+
+                Map<String, Object> result = found(name, id);
+
+                result.put("_source", source);
+
+                return new Response(200, result);
+            }
+            case "DELETE": {
+                boolean existed = docs.remove(id) != null;
+
+                return new Response(existed ? 200 : 404, writeResult(name, id, existed ? "deleted" : "not_found"));
+            }
+            default: {
+                if (kind.equals("_update")) {
+                    String result = update(docs, id, body);
+
+                    if (result == null) {
+                        return error(404, "document_missing_exception", "[_doc][" + id + "]: document missing");
+                    }
+
+                    return new Response(200, writeResult(name, id, result));
+                }
+
+                boolean create = kind.equals("_create") || "create".equals(params.get("op_type"));
+
+                if (create && docs.containsKey(id)) {
+                    return error(409, "version_conflict_engine_exception", "[" + id + "]: version conflict, document already exists");
+                }
+
+                boolean existed = docs.put(id, body) != null;
+
+                return new Response(existed ? 200 : 201, writeResult(name, id, existed ? "updated" : "created"));
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private String update(Map<String, Map<String, Object>> docs, String id, Map<String, Object> body) {
+        synchronized (docs) {
+            Map<String, Object> source = docs.get(id);
+
+            if (source == null) {
+                return null;
+            }
+
+            if (body.containsKey("script")) {
+                Map<String, Object> script = (Map<String, Object>) body.get("script");
+
+                Matcher matcher = SCRIPT_COUNT.matcher(String.valueOf(script.get("source")));
+
+                if (!matcher.find()) {
+                    throw new IllegalArgumentException("unsupported script " + script.get("source"));
+                }
+
+                Map<String, Object> scriptParams = (Map<String, Object>) script.getOrDefault("params", Map.of());
+
+                int count = ((Number) scriptParams.getOrDefault("count", 1)).intValue();
+                int refs = source.get("refs") == null ? 0 : ((Number) source.get("refs")).intValue();
+
+                Map<String, Object> updated = new HashMap<>(source);
+
+                if (matcher.group(1).equals("+")) {
+                    updated.put("refs", refs + count);
+                } else if (refs - count <= 0) {
+                    docs.remove(id);
+
+                    return "deleted";
+                } else {
+                    updated.put("refs", refs - count);
+                }
+
+                if (scriptParams.containsKey("upload")) {
+                    updated.put("upload", scriptParams.get("upload"));
+                }
+
+                docs.put(id, updated);
+
+                return "updated";
+            }
+
+            Map<String, Object> updated = new HashMap<>(source);
+
+            updated.putAll((Map<String, Object>) body.getOrDefault("doc", Map.of()));
+
+            docs.put(id, updated);
+
+            return "updated";
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Response bulk(byte[] body, ObjectMapper in, String defaultIndex) throws IOException {
+        List<byte[]> lines = split(body, in == smile ? (byte) 0xff : (byte) '\n');
+
+        List<Object> items = new ArrayList<>();
+
+        boolean errors = false;
+
+        for (int i = 0; i < lines.size(); ) {
+            Map<String, Object> action = parse(in, lines.get(i++));
+
+            String op = action.keySet().iterator().next();
+
+            Map<String, Object> meta = (Map<String, Object>) action.get(op);
+
+            String name = (String) meta.getOrDefault("_index", defaultIndex);
+            String id = meta.get("_id") == null ? UUID.randomUUID().toString() : String.valueOf(meta.get("_id"));
+
+            Map<String, Map<String, Object>> docs = index(name);
+
+            Map<String, Object> result = writeResult(name, id, "created");
+
+            switch (op) {
+                case "index":
+                case "create": {
+                    Map<String, Object> source = parse(in, lines.get(i++));
+
+                    if (op.equals("create") && docs.putIfAbsent(id, source) != null) {
+                        errors = true;
+
+                        items.add(Map.of(op, failure(name, id, 409, "version_conflict_engine_exception", "[" + id + "]: version conflict, document already exists")));
+
+                        continue;
+                    }
+
+                    if (op.equals("index")) {
+                        result.put("result", docs.put(id, source) == null ? "created" : "updated");
+                    }
+
+                    result.put("status", result.get("result").equals("created") ? 201 : 200);
+
+                    break;
+                }
+                case "delete": {
+                    boolean existed = docs.remove(id) != null;
+
+                    result.put("result", existed ? "deleted" : "not_found");
+                    result.put("status", existed ? 200 : 404);
+
+                    break;
+                }
+                case "update": {
+                    String outcome = update(docs, id, parse(in, lines.get(i++)));
+
+                    if (outcome == null) {
+                        errors = true;
+
+                        items.add(Map.of(op, failure(name, id, 404, "document_missing_exception", "[_doc][" + id + "]: document missing")));
+
+                        continue;
+                    }
+
+                    result.put("result", outcome);
+                    result.put("status", 200);
+
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("unsupported bulk action " + op);
+            }
+
+            items.add(Map.of(op, result));
+        }
+
+        return new Response(200, Map.of("took", 1, "errors", errors, "items", items));
+    }
+
+    private static List<byte[]> split(byte[] body, byte separator) {
+        List<byte[]> lines = new ArrayList<>();
+
+        int start = 0;
+
+        for (int i = 0; i <= body.length; i++) {
+            if (i == body.length || body[i] == separator) {
+                if (i > start && !(i - start == 1 && body[start] == '\r')) {
+                    lines.add(Arrays.copyOfRange(body, start, i));
+                }
+
+                start = i + 1;
+            }
+        }
+
+        return lines;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Response mget(Map<String, Object> body, String defaultIndex) {
+        List<Object> docs = new ArrayList<>();
+
+        for (Map<String, Object> item : (List<Map<String, Object>>) body.get("docs")) {
+            String name = (String) item.getOrDefault("_index", defaultIndex);
+            String id = String.valueOf(item.get("_id"));
+
+            Map<String, Object> source = index(name).get(id);
+
+            if (source == null) {
+                docs.add(Map.of("_index", name, "_type", "_doc", "_id", id, "found", false));
+
+                continue;
+            }
+
+            Map<String, Object> result = found(name, id);
+
+            Map<String, Object> filtered = filter(source, item.get("_source"));
+
+            if (filtered != null) {
+                result.put("_source", filtered);
+            }
+
+            docs.add(result);
+        }
+
+        return new Response(200, Map.of("docs", docs));
+    }
+
+    @SuppressWarnings("unchecked")
+    private Response search(String names, Map<String, Object> body, Map<String, String> params) {
+        List<Object[]> hits = new ArrayList<>();
+
+        Collection<String> targets = names == null ? indices.keySet() : Arrays.asList(names.split(","));
+
+        Map<String, Object> query = (Map<String, Object>) body.get("query");
+
+        for (String name : targets) {
+            for (Map.Entry<String, Map<String, Object>> doc : index(name).entrySet()) {
+                if (matches(doc.getValue(), doc.getKey(), query)) {
+                    hits.add(new Object[] {name, doc.getKey(), doc.getValue()});
+                }
+            }
+        }
+
+        // The client only ever sorts by _doc, which is the id order here.
+        hits.sort(Comparator.comparing(x -> (String) x[1]));
+
+        int from = ((Number) body.getOrDefault("from", 0)).intValue();
+        int size = ((Number) body.getOrDefault("size", 10)).intValue();
+
+        if (params.containsKey("scroll")) {
+            Scroll scroll = new Scroll();
+
+            scroll.hits = hits;
+            scroll.size = size;
+            scroll.sourceFilter = body.get("_source");
+
+            String id = UUID.randomUUID().toString();
+
+            scrolls.put(id, scroll);
+
+            return scrollPage(id);
+        }
+
+        List<Object> page = new ArrayList<>();
+
+        for (Object[] x : hits.subList(Math.min(from, hits.size()), Math.min(from + size, hits.size()))) {
+            page.add(hit(x, body.get("_source")));
+        }
+
+        return new Response(200, searchResult(hits.size(), page, null));
+    }
+
+    private Response scrollPage(String id) {
+        Scroll scroll = scrolls.get(id);
+
+        if (scroll == null) {
+            return error(404, "search_context_missing_exception", "No search context found for id [" + id + "]");
+        }
+
+        List<Object> page = new ArrayList<>();
+
+        for (Object[] x : scroll.hits.subList(Math.min(scroll.position, scroll.hits.size()), Math.min(scroll.position + scroll.size, scroll.hits.size()))) {
+            page.add(hit(x, scroll.sourceFilter));
+        }
+
+        scroll.position += scroll.size;
+
+        return new Response(200, searchResult(scroll.hits.size(), page, id));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static boolean matches(Map<String, Object> source, String id, Map<String, Object> query) {
+        if (query == null || query.containsKey("match_all")) {
+            return true;
+        }
+
+        if (query.containsKey("term") || query.containsKey("prefix")) {
+            boolean prefix = query.containsKey("prefix");
+
+            Map<String, Object> clause = (Map<String, Object>) query.get(prefix ? "prefix" : "term");
+
+            String field = clause.keySet().iterator().next();
+
+            Object value = clause.get(field);
+
+            if (value instanceof Map) {
+                value = ((Map<String, Object>) value).get("value");
+            }
+
+            Object actual = field.equals("_id") ? id : source.get(field);
+
+            if (actual == null) {
+                return false;
+            }
+
+            return prefix ? String.valueOf(actual).startsWith(String.valueOf(value)) : String.valueOf(actual).equals(String.valueOf(value));
+        }
+
+        throw new IllegalArgumentException("unsupported query " + query);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> filter(Map<String, Object> source, Object sourceFilter) {
+        if (sourceFilter == null || Boolean.TRUE.equals(sourceFilter)) {
+            return source;
+        }
+
+        if (Boolean.FALSE.equals(sourceFilter)) {
+            return null;
+        }
+
+        Collection<Object> includes = null;
+        Collection<Object> excludes = List.of();
+
+        if (sourceFilter instanceof Map) {
+            Map<String, Object> filter = (Map<String, Object>) sourceFilter;
+
+            if (Boolean.FALSE.equals(filter.get("fetch_source"))) {
+                return null;
+            }
+
+            includes = (Collection<Object>) filter.getOrDefault("includes", filter.get("include"));
+            excludes = (Collection<Object>) filter.getOrDefault("excludes", filter.getOrDefault("exclude", List.of()));
+        } else if (sourceFilter instanceof List) {
+            includes = (Collection<Object>) sourceFilter;
+        }
+
+        Set<Object> excluded = Set.copyOf(excludes);
+
+        Map<String, Object> filtered = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Object> field : source.entrySet()) {
+            if (!excluded.contains(field.getKey()) && (includes == null || includes.isEmpty() || includes.contains(field.getKey()))) {
+                filtered.put(field.getKey(), field.getValue());
+            }
+        }
+
+        return filtered;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> hit(Object[] x, Object sourceFilter) {
+        Map<String, Object> hit = new LinkedHashMap<>();
+
+        hit.put("_index", x[0]);
+        hit.put("_type", "_doc");
+        hit.put("_id", x[1]);
+        hit.put("_score", 1.0);
+
+        Map<String, Object> source = filter((Map<String, Object>) x[2], sourceFilter);
+
+        if (source != null) {
+            hit.put("_source", source);
+        }
+
+        return hit;
+    }
+
+    private static Map<String, Object> searchResult(int total, List<Object> page, String scrollId) {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        if (scrollId != null) {
+            result.put("_scroll_id", scrollId);
+        }
+
+        result.put("took", 1);
+        result.put("timed_out", false);
+        result.put("_shards", shards());
+        result.put("hits", Map.of(
+            "total", Map.of("value", total, "relation", "eq"),
+            "max_score", 1.0,
+            "hits", page
+        ));
+
+        return result;
+    }
+
+    private static Map<String, Object> shards() {
+        return Map.of("total", 1, "successful", 1, "skipped", 0, "failed", 0);
+    }
+
+    private static Map<String, Object> found(String name, String id) {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        result.put("_index", name);
+        result.put("_type", "_doc");
+        result.put("_id", id);
+        result.put("_version", 1);
+        result.put("_seq_no", 0);
+        result.put("_primary_term", 1);
+        result.put("found", true);
+
+        return result;
+    }
+
+    private static Map<String, Object> writeResult(String name, String id, String result) {
+        Map<String, Object> response = new LinkedHashMap<>();
+
+        response.put("_index", name);
+        response.put("_type", "_doc");
+        response.put("_id", id);
+        response.put("_version", 1);
+        response.put("result", result);
+        response.put("_shards", Map.of("total", 1, "successful", 1, "failed", 0));
+        response.put("_seq_no", 0);
+        response.put("_primary_term", 1);
+
+        return response;
+    }
+
+    private static Map<String, Object> failure(String name, String id, int status, String type, String reason) {
+        return Map.of(
+            "_index", name,
+            "_type", "_doc",
+            "_id", id,
+            "status", status,
+            "error", Map.of("type", type, "reason", reason)
+        );
+    }
+
+    private static Response error(int status, String type, String reason) {
+        return new Response(status, Map.of("error", Map.of("type", type, "reason", reason), "status", status));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 9200;
+        long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+        new FakeElasticsearch(port, latency);
+
+        System.out.println("Fake Elasticsearch listening on 127.0.0.1:" + port);
+    }
+}
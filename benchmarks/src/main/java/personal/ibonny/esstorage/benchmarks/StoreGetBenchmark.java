@@ -0,0 +1,117 @@
+package personal.ibonny.esstorage.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import personal.ibonny.esstorage.models.ChunkCodec;
+import personal.ibonny.esstorage.services.ESService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StoreGetBenchmark {
+    private static final int FILE_SIZE = 8 * 1024 * 1024;
+
+    // Added to every request by the fake, e.g. 0 for a local cluster and 20 or more for a remote one.
+    @Param({"0", "5"})
+    public long latencyMillis;
+
+    @Param({"65536", "262144"})
+    public int chunkSize;
+
+    @Param({"none"})
+    public String codec;
+
+    @Param({"json"})
+    public String format;
+
+    @Param({"1", "4"})
+    public int parallel;
+
+    @Param({"4"})
+    public int readAhead;
+
+    private FakeElasticsearch fake;
+    private ESService esService;
+
+    private File source;
+
+    private int stored = 0;
+    private String readName;
+
+    @Setup(Level.Trial)
+    public void startCluster() throws IOException {
+        fake = new FakeElasticsearch(0, latencyMillis);
+
+        esService = new ESService("127.0.0.1", fake.getPort());
+
+        esService.setCodec(ChunkCodec.fromName(codec));
+        esService.setChunkFormat(format);
+        esService.setParallelRequests(parallel);
+        esService.setReadAhead(readAhead);
+
+        byte[] data = new byte[FILE_SIZE];
+
+        new Random(42).nextBytes(data);
+
+        // Half of the file compresses well, so the codecs are measured on something like real data.
+        byte[] text = "the quick brown fox jumps over the lazy dog ".getBytes();
+
+        for (int i = 0; i < FILE_SIZE / 2; i++) {
+            data[i] = text[i % text.length];
+        }
+
+        source = File.createTempFile("es-storage-bench", ".bin");
+
+        Files.write(source.toPath(), data);
+    }
+
+    @Setup(Level.Iteration)
+    public void storeReadTarget() {
+        // Drop what the last iteration stored, so the fake does not keep every uploaded copy in memory.
+        fake.clear();
+
+        readName = "bench/read-" + stored++;
+
+        esService.storeFile(source.getPath(), readName, chunkSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopCluster() {
+        esService.closeClient();
+
+        fake.close();
+
+        source.delete();
+    }
+
+    @Benchmark
+    public boolean store() {
+        return esService.storeFile(source.getPath(), "bench/store-" + stored++, chunkSize);
+    }
+
+    @Benchmark
+    public long get() throws IOException {
+        return esService.getFile(readName, OutputStream.nullOutputStream());
+    }
+}
@@ -1,19 +1,31 @@
 package personal.ibonny.esstorage;
 
+import personal.ibonny.esstorage.models.ClientSettings;
 import personal.ibonny.esstorage.services.CallOutFunctions;
 import personal.ibonny.esstorage.services.ESService;
+import personal.ibonny.esstorage.services.ObjectGateway;
+import personal.ibonny.esstorage.services.OperationStats;
+import personal.ibonny.esstorage.services.TreeTransfer;
 import picocli.CommandLine;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 
 import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 public class EntryPoint implements Callable<Integer> {
     ESService esService;
 
+    CallOutFunctions cof;
+
+    private final CountDownLatch finished = new CountDownLatch(1);
+
     @Parameters(index = "0", description = "Action to run")
     private String action;
 
@@ -23,41 +35,255 @@ public class EntryPoint implements Callable<Integer> {
     @Option(names = {"-s", "--size"}, defaultValue = "2048", description = "Buffer size")
     private int bufferSize;
 
-    @Option(names = {"-h", "--host"}, defaultValue = "192.168.1.224:9200", description = "ElasticSearch host/port (e.g. hostname:9200)")
+    @Option(names = {"-h", "--host"}, defaultValue = "192.168.1.224:9200", description = "ElasticSearch host/port, or a comma separated list of them (e.g. node1:9200,node2:9200)")
     private String hostPort;
 
+    @Option(names = {"--node-selector"}, defaultValue = "round-robin", description = "How requests are spread over the hosts. [round-robin, least-loaded]")
+    private String nodeSelector;
+
+    @Option(names = {"--sniff"}, defaultValue = "false", description = "Discover the other nodes of the cluster and send requests to all of them.")
+    private boolean sniff;
+
+    @Option(names = {"--sniff-interval"}, defaultValue = "300000", description = "How often in milliseconds the node list is refreshed when sniffing.")
+    private long sniffInterval;
+
+    @Option(names = {"--max-connections"}, defaultValue = "30", description = "Maximum number of open HTTP connections.")
+    private int maxConnections;
+
+    @Option(names = {"--max-connections-per-node"}, defaultValue = "10", description = "Maximum number of open HTTP connections to a single node.")
+    private int maxConnectionsPerNode;
+
+    @Option(names = {"--keep-alive"}, defaultValue = "60000", description = "How long in milliseconds idle connections are kept open for reuse.")
+    private long keepAlive;
+
+    @Option(names = {"--connect-timeout"}, defaultValue = "1000", description = "Connect timeout in milliseconds.")
+    private int connectTimeout;
+
+    @Option(names = {"--socket-timeout"}, defaultValue = "30000", description = "Socket timeout in milliseconds.")
+    private int socketTimeout;
+
+    @Option(names = {"--io-threads"}, defaultValue = "0", description = "Number of HTTP client I/O threads (default one per CPU).")
+    private int ioThreads;
+
     @Option(names = {"--opt"}, defaultValue = "false", description = "Use optimized buffer size.")
     private boolean optimalBufferSize;
 
+    @Option(names = {"--adaptive"}, defaultValue = "false", description = "Tune chunk and bulk request sizes from the latency and throughput measured at the start of a store.")
+    private boolean adaptive;
+
     @Option(names = {"--sort"}, defaultValue = "none", description = "Sort order for listings. [asc, desc, none]")
     private String sortOrder;
 
+    @Option(names = {"--bulk-actions"}, defaultValue = "500", description = "Maximum number of chunks per bulk request.")
+    private int bulkMaxActions;
+
+    @Option(names = {"--bulk-bytes"}, defaultValue = "5242880", description = "Maximum size in bytes of a bulk request.")
+    private long bulkMaxBytes;
+
+    @Option(names = {"--parallel"}, defaultValue = "1", description = "Number of concurrent bulk requests when storing.")
+    private int parallel;
+
+    @Option(names = {"--fetch-batch"}, defaultValue = "50", description = "Number of chunks fetched per multi-get request.")
+    private int fetchBatchSize;
+
+    @Option(names = {"--read-ahead"}, defaultValue = "4", description = "Number of chunk batches fetched ahead of the reader.")
+    private int readAhead;
+
+    @Option(names = {"--dedup"}, defaultValue = "false", description = "Store chunks under a hash of their content and reuse existing chunks.")
+    private boolean dedup;
+
+    @Option(names = {"--chunker"}, defaultValue = "fixed", description = "How files are split into chunks. [fixed, cdc]")
+    private String chunker;
+
+    @Option(names = {"--min-chunk"}, defaultValue = "0", description = "Minimum chunk size for content defined chunking (default size / 4).")
+    private int minChunkSize;
+
+    @Option(names = {"--max-chunk"}, defaultValue = "0", description = "Maximum chunk size for content defined chunking (default size * 4).")
+    private int maxChunkSize;
+
+    @Option(names = {"--codec"}, defaultValue = "none", description = "Compression used for stored chunks. [none, lz4, deflate]")
+    private String codec;
+
+    @Option(names = {"--replicas"}, defaultValue = "-1", description = "Number of replicas for the storage indices (default leaves the cluster setting).")
+    private int replicas;
+
+    @Option(names = {"--refresh-interval"}, defaultValue = "", description = "Refresh interval for the storage indices, e.g. 30s or -1 (default leaves the cluster setting).")
+    private String refreshInterval;
+
+    @Option(names = {"--format"}, defaultValue = "json", description = "Wire format for chunk documents. [json, smile]")
+    private String chunkFormat;
+
+    @Option(names = {"--offset"}, defaultValue = "0", description = "Byte offset to start reading from for get and cat.")
+    private long offset;
+
+    @Option(names = {"--length"}, defaultValue = "-1", description = "Number of bytes to read for get and cat (default reads to the end).")
+    private long length;
+
+    @Option(names = {"--tail"}, defaultValue = "0", description = "Read only the last N bytes for get and cat.")
+    private long tail;
+
+    @Option(names = {"--cache-dir"}, defaultValue = "", description = "Directory for a local cache of fetched chunks (default disables the cache).")
+    private String cacheDir;
+
+    @Option(names = {"--cache-bytes"}, defaultValue = "1073741824", description = "Maximum size in bytes of the local chunk cache.")
+    private long cacheBytes;
+
+    @Option(names = {"--metadata-ttl"}, defaultValue = "30000", description = "How long in milliseconds file metadata lookups are cached (0 disables the cache).")
+    private long metadataTtl;
+
+    @Option(names = {"--scroll-keep-alive"}, defaultValue = "600000", description = "How long in milliseconds a listing scroll is kept open between pages.")
+    private long scrollKeepAlive;
+
+    @Option(names = {"--workers"}, defaultValue = "4", description = "Number of files processed in parallel by integrity and recursive store/get.")
+    private int workers;
+
+    @Option(names = {"--report"}, defaultValue = "", description = "Write a JSON integrity report to this file.")
+    private String reportPath;
+
+    @Option(names = {"--resume"}, defaultValue = "false", description = "Continue an interrupted store from its last checkpoint.")
+    private boolean resume;
+
+    @Option(names = {"--checkpoint-dir"}, defaultValue = "", description = "Directory for upload checkpoints (default ~/.es-storage/checkpoints).")
+    private String checkpointDir;
+
+    @Option(names = {"-r", "--recursive"}, defaultValue = "false", description = "Store a directory tree, or get every file under a stored directory.")
+    private boolean recursive;
+
+    @Option(names = {"--pack-threshold"}, defaultValue = "0", description = "With -r, pack files smaller than this many bytes into shared chunks (0 disables packing).")
+    private long packThreshold;
+
+    @Option(names = {"--pack-size"}, defaultValue = "262144", description = "Target size in bytes of a pack chunk.")
+    private int packSize;
+
+    @Option(names = {"--serve-threads"}, defaultValue = "16", description = "Number of requests the serve gateway handles at the same time.")
+    private int serveThreads;
+
+    @Option(names = {"--serve-queue"}, defaultValue = "64", description = "Number of requests the serve gateway queues before it stops accepting connections.")
+    private int serveQueue;
+
+    @Option(names = {"--stats"}, defaultValue = "false", description = "Print request latency, throughput and retry statistics when the command finishes.")
+    private boolean stats;
+
+    @Option(names = {"--stats-json"}, defaultValue = "", description = "Write the statistics as JSON to this file, or - for standard output.")
+    private String statsJson;
+
     @Override
     public Integer call() throws Exception {
-        CallOutFunctions cof = new CallOutFunctions();
+        try {
+            int exitCode = runCommand();
+
+            if (stats || !statsJson.isEmpty()) {
+                if (esService != null) {
+                    OperationStats operationStats = esService.getStats();
+
+                    if (stats) {
+                        operationStats.printSummary();
+                    }
+
+                    if (!statsJson.isEmpty()) {
+                        operationStats.writeJson(statsJson);
+                    }
+                }
+            }
 
+            return exitCode;
+        } finally {
+            finished.countDown();
+        }
+    }
+
+    private int runCommand() throws Exception {
         String inputFileName = "";
         String outputFileName = "";
 
         hostPort = hostPort.trim();
 
-        if (! hostPort.contains(":")) {
-            System.out.println("Please provide a host and a port.");
+        if (tail > 0) {
+            offset = -tail;
+        }
+
+        ClientSettings clientSettings = new ClientSettings();
+
+        for (String host : hostPort.split(",")) {
+            if (! host.contains(":")) {
+                System.out.println("Please provide a host and a port.");
+
+                return 1;
+            }
+
+            clientSettings.getHosts().add(host.trim());
+        }
+
+        if (!nodeSelector.equals("round-robin") && !nodeSelector.equals("least-loaded")) {
+            System.out.println("Unknown node selector: " + nodeSelector);
 
             return 1;
         }
 
-        List<String> fields = Arrays.asList(hostPort.split(":"));
+        if (!List.of("none", "lz4", "deflate").contains(codec.toLowerCase())) {
+            System.out.println("Unknown codec: " + codec);
 
-        esService = new ESService(fields.get(0), Integer.parseInt(fields.get(1)));
+            return 1;
+        }
+
+        if (!chunker.equals("fixed") && !chunker.equals("cdc")) {
+            System.out.println("Unknown chunker: " + chunker);
+
+            return 1;
+        }
+
+        if (!chunkFormat.equals("json") && !chunkFormat.equals("smile")) {
+            System.out.println("Unknown chunk format: " + chunkFormat);
+
+            return 1;
+        }
+
+        clientSettings.setNodeSelector(nodeSelector);
+        clientSettings.setSniff(sniff);
+        clientSettings.setSniffIntervalMillis(sniffInterval);
+        clientSettings.setMaxConnections(maxConnections);
+        clientSettings.setMaxConnectionsPerNode(maxConnectionsPerNode);
+        clientSettings.setKeepAliveMillis(keepAlive);
+        clientSettings.setConnectTimeoutMillis(connectTimeout);
+        clientSettings.setSocketTimeoutMillis(socketTimeout);
+        clientSettings.setIoThreads(ioThreads);
+
+        // One client is shared by every command, so --host and the connection settings apply everywhere.
+        esService = new ESService(clientSettings, replicas, refreshInterval);
+
+        cof = new CallOutFunctions(esService);
 
         boolean commandFound = false;
 
-        cof.setParameters(Map.of(
-            "bufferSize", bufferSize,
-            "hostPort", hostPort,
-            "optimalBufferSize", optimalBufferSize,
-            "sortOrder", sortOrder
+        cof.setParameters(Map.ofEntries(
+            Map.entry("bufferSize", bufferSize),
+            Map.entry("hostPort", hostPort),
+            Map.entry("optimalBufferSize", optimalBufferSize),
+            Map.entry("adaptive", adaptive),
+            Map.entry("sortOrder", sortOrder),
+            Map.entry("bulkMaxActions", bulkMaxActions),
+            Map.entry("bulkMaxBytes", bulkMaxBytes),
+            Map.entry("parallel", parallel),
+            Map.entry("fetchBatchSize", fetchBatchSize),
+            Map.entry("readAhead", readAhead),
+            Map.entry("dedup", dedup),
+            Map.entry("chunker", chunker),
+            Map.entry("minChunkSize", minChunkSize),
+            Map.entry("maxChunkSize", maxChunkSize),
+            Map.entry("codec", codec),
+            Map.entry("chunkFormat", chunkFormat),
+            Map.entry("offset", offset),
+            Map.entry("length", length),
+            Map.entry("cacheDir", cacheDir),
+            Map.entry("cacheBytes", cacheBytes),
+            Map.entry("metadataTtl", metadataTtl),
+            Map.entry("scrollKeepAlive", scrollKeepAlive),
+            Map.entry("resume", resume),
+            Map.entry("checkpointDir", checkpointDir),
+            Map.entry("recursive", recursive),
+            Map.entry("workers", workers),
+            Map.entry("packThreshold", packThreshold),
+            Map.entry("packSize", packSize)
         ));
 
         if (cof.FUNCTIONS.containsKey(action)) {
@@ -65,18 +291,33 @@ public class EntryPoint implements Callable<Integer> {
                 parameters = new ArrayList<>();
             }
 
-            return (int) cof.FUNCTIONS.get(action).invoke(cof, parameters);
+            int result = (int) cof.FUNCTIONS.get(action).invoke(cof, parameters);
+
+            esService.closeClient();
+
+            return result;
         }
 
         if (action.equals("get")) {
             if (parameters.size() == 0) {
-                System.out.println("\n   Please provide a filename to get, or a filename to get and a destination filename to write to.\n");
+                System.out.println("\n   Please provide a filename to get, or a filename to get and a destination filename to write to.");
+                System.out.println("   With -r, provide a stored directory and optionally a directory to write to.\n");
 
                 esService.closeClient();
 
                 return 1;
             }
 
+            if (recursive) {
+                String directory = parameters.size() > 1 ? parameters.get(1) : ".";
+
+                boolean ok = new TreeTransfer(esService, workers).getTree(parameters.get(0), directory);
+
+                esService.closeClient();
+
+                return ok ? 0 : 1;
+            }
+
             if (parameters.size() == 1) {
                 inputFileName = parameters.get(0);
                 outputFileName = parameters.get(0);
@@ -89,28 +330,22 @@ public class EntryPoint implements Callable<Integer> {
 
             System.out.println("Using input file name of '" + inputFileName + "' and output filename of '" + outputFileName + "'.");
 
-            ByteArrayOutputStream baos = esService.getFile(inputFileName);
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-
-            int numBytes;
-
-            byte[] buffer = new byte[1024];
-
-            long totalBytes = 0;
+            long totalBytes;
 
             try {
-                FileOutputStream fos = new FileOutputStream(new File(outputFileName));
+                totalBytes = esService.restoreFile(inputFileName, offset, length, Paths.get(outputFileName));
+            } catch(IOException ioe) {
+                System.out.println("Error writing out to file: " + ioe.getMessage());
+
+                esService.closeClient();
 
-                while ((numBytes = bais.read(buffer, 0, 1024)) != -1) {
-                    fos.write(buffer, 0, numBytes);
+                return 1;
+            }
 
-                    totalBytes += numBytes;
-                }
+            if (totalBytes < 0) {
+                esService.closeClient();
 
-                fos.close();
-            } catch(IOException ioe) {
-                System.out.println("Error writing out to file: " + ioe.getMessage());
+                return 1;
             }
 
             System.out.println(String.format("Wrote out %s to file %s with %d bytes.",
@@ -131,13 +366,63 @@ public class EntryPoint implements Callable<Integer> {
                 return 1;
             }
 
-            esService.delete(parameters.get(0));
+            if (!esService.delete(parameters.get(0))) {
+                esService.closeClient();
+
+                return 1;
+            }
+
+            commandFound = true;
+        }
+
+        if (action.equals("serve")) {
+            String listen = parameters != null && parameters.size() > 0 ? parameters.get(0) : String.valueOf(ObjectGateway.DEFAULT_PORT);
+
+            // Without an address the gateway only listens locally, since it does no authentication of its own.
+            String listenHost = listen.contains(":") ? listen.substring(0, listen.lastIndexOf(':')) : "127.0.0.1";
+
+            int listenPort;
+
+            try {
+                listenPort = Integer.parseInt(listen.substring(listen.lastIndexOf(':') + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("\n   Please provide a port, or an address and port, to serve on.\n");
+
+                esService.closeClient();
+
+                return 1;
+            }
+
+            ObjectGateway gateway = new ObjectGateway(esService, new InetSocketAddress(listenHost, listenPort), serveThreads, serveQueue, bufferSize);
+
+            if (!gateway.start()) {
+                esService.closeClient();
+
+                return 1;
+            }
+
+            // On Ctrl-C or SIGTERM, drain the running requests, then give this thread time to close the client and report.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                gateway.stop();
+
+                try {
+                    finished.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "gateway-shutdown"));
+
+            gateway.awaitStop();
 
             commandFound = true;
         }
 
         if (action.equals("integrity")) {
-            esService.integrityCheck();
+            if (!esService.integrityCheck(workers, reportPath)) {
+                esService.closeClient();
+
+                return 1;
+            }
 
             commandFound = true;
         }
@@ -0,0 +1,7 @@
+package personal.ibonny.esstorage.chunkers;
+
+import java.io.IOException;
+
+public interface Chunker {
+    byte[] next() throws IOException;
+}
@@ -0,0 +1,133 @@
+package personal.ibonny.esstorage.chunkers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class FastCdcChunker implements Chunker {
+    private static final long[] GEAR = new long[256];
+
+    static {
+        // Fixed SplitMix64 sequence, so chunk boundaries stay the same between runs and versions.
+        long seed = 0x6573_7374_6f72_6167L;
+
+        for (int i = 0; i < GEAR.length; i++) {
+            seed += 0x9e37_79b9_7f4a_7c15L;
+
+            long z = seed;
+
+            z = (z ^ (z >>> 30)) * 0xbf58_476d_1ce4_e5b9L;
+            z = (z ^ (z >>> 27)) * 0x94d0_49bb_1331_11ebL;
+
+            GEAR[i] = z ^ (z >>> 31);
+        }
+    }
+
+    private final InputStream input;
+    private final int minSize;
+    private final int avgSize;
+    private final int maxSize;
+
+    private final long maskSmall;
+    private final long maskLarge;
+
+    private final byte[] buffer;
+    private int start = 0;
+    private int end = 0;
+    private boolean eof = false;
+
+    public FastCdcChunker(InputStream input, int minSize, int avgSize, int maxSize) {
+        if (minSize <= 0 || minSize > avgSize || avgSize > maxSize) {
+            throw new IllegalArgumentException("Chunk sizes must satisfy 0 < min <= avg <= max.");
+        }
+
+        this.input = input;
+        this.minSize = minSize;
+        this.avgSize = avgSize;
+        this.maxSize = maxSize;
+
+        int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+
+        // Normalized chunking: a stricter mask before the average size and a looser one after it.
+        this.maskSmall = highBits(bits + 1);
+        this.maskLarge = highBits(Math.max(1, bits - 1));
+
+        this.buffer = new byte[maxSize * 2];
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+        fill();
+
+        if (start == end) {
+            return null;
+        }
+
+        int length = cut(start, Math.min(end - start, maxSize));
+
+        byte[] chunk = Arrays.copyOfRange(buffer, start, start + length);
+
+        start += length;
+
+        return chunk;
+    }
+
+    private int cut(int offset, int available) {
+        if (available <= minSize) {
+            return available;
+        }
+
+        int normal = Math.min(avgSize, available);
+
+        long fingerprint = 0;
+
+        int i = minSize;
+
+        for (; i < normal; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xff];
+
+            if ((fingerprint & maskSmall) == 0) {
+                return i + 1;
+            }
+        }
+
+        for (; i < available; i++) {
+            fingerprint = (fingerprint << 1) + GEAR[buffer[offset + i] & 0xff];
+
+            if ((fingerprint & maskLarge) == 0) {
+                return i + 1;
+            }
+        }
+
+        return available;
+    }
+
+    private void fill() throws IOException {
+        if (eof || end - start >= maxSize) {
+            return;
+        }
+
+        if (start > 0) {
+            System.arraycopy(buffer, start, buffer, 0, end - start);
+
+            end -= start;
+            start = 0;
+        }
+
+        while (end < buffer.length) {
+            int numBytes = input.read(buffer, end, buffer.length - end);
+
+            if (numBytes == -1) {
+                eof = true;
+
+                return;
+            }
+
+            end += numBytes;
+        }
+    }
+
+    private static long highBits(int count) {
+        return -1L << (64 - count);
+    }
+}
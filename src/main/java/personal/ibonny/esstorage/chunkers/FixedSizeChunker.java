@@ -0,0 +1,30 @@
+package personal.ibonny.esstorage.chunkers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.IntSupplier;
+
+public class FixedSizeChunker implements Chunker {
+    private final InputStream input;
+    private final IntSupplier chunkSize;
+
+    public FixedSizeChunker(InputStream input, int chunkSize) {
+        this(input, () -> chunkSize);
+    }
+
+    public FixedSizeChunker(InputStream input, IntSupplier chunkSize) {
+        this.input = input;
+        this.chunkSize = chunkSize;
+    }
+
+    @Override
+    public byte[] next() throws IOException {
+        byte[] data = input.readNBytes(chunkSize.getAsInt());
+
+        if (data.length == 0) {
+            return null;
+        }
+
+        return data;
+    }
+}
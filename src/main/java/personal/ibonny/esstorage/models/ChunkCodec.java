@@ -0,0 +1,129 @@
+package personal.ibonny.esstorage.models;
+
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+public enum ChunkCodec {
+    NONE {
+        @Override
+        public byte[] compress(byte[] data) {
+            return data;
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int length) {
+            return data;
+        }
+    },
+
+    LZ4 {
+        @Override
+        public byte[] compress(byte[] data) {
+            return LZ4_FACTORY.fastCompressor().compress(data);
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int length) throws IOException {
+            byte[] out = new byte[length];
+
+            // The safe decompressor bounds-checks its input, so a damaged chunk is an error instead of a crash.
+            try {
+                int numBytes = LZ4_FACTORY.safeDecompressor().decompress(data, 0, data.length, out, 0, length);
+
+                if (numBytes != length) {
+                    throw new IOException("Corrupt LZ4 chunk: expected " + length + " bytes, got " + numBytes + ".");
+                }
+
+                return out;
+            } catch (LZ4Exception e) {
+                throw new IOException("Corrupt LZ4 chunk: " + e.getMessage());
+            }
+        }
+    },
+
+    DEFLATE {
+        @Override
+        public byte[] compress(byte[] data) {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+
+            try {
+                deflater.setInput(data);
+                deflater.finish();
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+
+                byte[] buffer = new byte[8192];
+
+                while (!deflater.finished()) {
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] data, int length) throws IOException {
+            Inflater inflater = new Inflater();
+
+            try {
+                inflater.setInput(data);
+
+                byte[] out = new byte[length];
+
+                int numBytes = 0;
+
+                while (numBytes < length && !inflater.finished()) {
+                    int inflated = inflater.inflate(out, numBytes, length - numBytes);
+
+                    if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                        throw new IOException("Truncated deflate chunk.");
+                    }
+
+                    numBytes += inflated;
+                }
+
+                if (numBytes != length) {
+                    throw new IOException("Corrupt deflate chunk: expected " + length + " bytes, got " + numBytes + ".");
+                }
+
+                // The end of the stream can still be pending once the output is full, so it is read before checking for leftovers.
+                if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                    throw new IOException("Corrupt deflate chunk: more than " + length + " bytes.");
+                }
+
+                if (!inflater.finished()) {
+                    throw new IOException("Truncated deflate chunk.");
+                }
+
+                if (inflater.getRemaining() > 0) {
+                    throw new IOException("Corrupt deflate chunk: " + inflater.getRemaining() + " byte(s) left over.");
+                }
+
+                return out;
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt deflate chunk: " + e.getMessage());
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+    public abstract byte[] compress(byte[] data) throws IOException;
+
+    public abstract byte[] decompress(byte[] data, int length) throws IOException;
+
+    public static ChunkCodec fromName(String name) {
+        return ChunkCodec.valueOf(name.toUpperCase());
+    }
+}
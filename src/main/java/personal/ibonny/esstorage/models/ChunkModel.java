@@ -1,5 +1,7 @@
 package personal.ibonny.esstorage.models;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 import lombok.ToString;
@@ -9,12 +11,26 @@ import java.util.UUID;
 @Data
 @NoArgsConstructor
 @ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class ChunkModel {
     private String id;
 
     private byte[] data;
     private int length;
 
+    private Integer refs;
+
+    private Long crc32c;
+
+    private ChunkCodec codec;
+
+    // The last upload that created or referenced this chunk, so a resumed upload can tell its own references apart.
+    private String upload;
+
+    // Set when the chunk exists but its source could not be decoded, as opposed to a chunk that is missing.
+    @JsonIgnore
+    private boolean corrupt;
+
     public ChunkModel(byte[] data, int length) {
         this.id = UUID.randomUUID().toString();
 
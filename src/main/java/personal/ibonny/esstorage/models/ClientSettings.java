@@ -0,0 +1,31 @@
+package personal.ibonny.esstorage.models;
+
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@ToString
+public class ClientSettings {
+    private List<String> hosts = new ArrayList<>();
+
+    private String nodeSelector = "round-robin";
+
+    private boolean sniff = false;
+    private long sniffIntervalMillis = 300000;
+
+    private int maxConnections = 30;
+    private int maxConnectionsPerNode = 10;
+    private long keepAliveMillis = 60000;
+    private int connectTimeoutMillis = 1000;
+    private int socketTimeoutMillis = 30000;
+    private int ioThreads = 0;
+
+    public ClientSettings(String host, int port) {
+        this.hosts.add(host + ":" + port);
+    }
+}
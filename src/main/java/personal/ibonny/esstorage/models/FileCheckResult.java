@@ -0,0 +1,38 @@
+package personal.ibonny.esstorage.models;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@ToString
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class FileCheckResult {
+    private String filename;
+    private long filesize;
+    private int chunks;
+
+    private boolean ok;
+
+    private long storedSize;
+    private int verifiedChunks;
+
+    private List<String> missingChunks = new ArrayList<>();
+    private List<String> corruptChunks = new ArrayList<>();
+
+    private boolean sizeMismatch;
+    private boolean digestMismatch;
+
+    private String error;
+
+    public FileCheckResult(FileModel file) {
+        this.filename = file.getFilename();
+        this.filesize = file.getFilesize();
+        this.chunks = file.getChunkList() == null ? 0 : file.getChunkList().size();
+    }
+}
@@ -17,9 +17,22 @@ public class FileModel implements Comparable {
     private String prefix;
     private String filename;
     private int chunkSize;
+    private Integer chunkCount;
     private long filesize;
 
+    private boolean contentAddressed;
+
+    private String sha256;
+
     private List<String> chunkList;
+    private List<Long> chunkOffsets;
+    private List<Integer> chunkLengths;
+
+    private Long packOffset;
+
+    private Integer bulkActions;
+    private Long bulkLatencyMillis;
+    private Long bulkBytesPerSecond;
 
     public FileModel(String filename, long filesize, int chunkSize, List<String> cl) {
         this.id = UUID.randomUUID().toString();
@@ -29,6 +42,7 @@ public class FileModel implements Comparable {
         this.chunkSize = chunkSize;
 
         this.chunkList = cl;
+        this.chunkCount = cl.size();
     }
 
     @Override
@@ -0,0 +1,46 @@
+package personal.ibonny.esstorage.models;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Data
+@NoArgsConstructor
+@ToString
+public class UploadCheckpoint {
+    private String uploadId;
+
+    private String source;
+    private String destination;
+
+    private long sourceSize;
+    private long sourceModified;
+
+    private int chunkSize;
+    private String chunker;
+    private int minChunkSize;
+    private int maxChunkSize;
+    private ChunkCodec codec;
+    private boolean contentAddressed;
+
+    // The confirmed chunks are appended to a manifest next to the checkpoint instead of being rewritten with it.
+    @JsonIgnore
+    private long confirmedSize;
+
+    @JsonIgnore
+    private List<String> chunkList = new ArrayList<>();
+    @JsonIgnore
+    private List<Long> chunkOffsets = new ArrayList<>();
+    @JsonIgnore
+    private List<Integer> chunkLengths = new ArrayList<>();
+    @JsonIgnore
+    private List<Long> chunkCrcs = new ArrayList<>();
+
+    // Chunk ids handed out past the confirmed prefix, which may have been written before the upload stopped.
+    @JsonIgnore
+    private List<String> reservedChunks = new ArrayList<>();
+}
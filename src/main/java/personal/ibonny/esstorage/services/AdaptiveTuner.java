@@ -0,0 +1,165 @@
+package personal.ibonny.esstorage.services;
+
+public class AdaptiveTuner {
+    public static final int MIN_CHUNK_SIZE = 4096;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int PROBE_REQUESTS = 6;
+    private static final int MIN_SAMPLES = 3;
+    private static final long PROBE_START_BYTES = 64 * 1024;
+    private static final int CHUNKS_PER_REQUEST = 16;
+    private static final long MIN_REQUEST_BYTES = 256 * 1024;
+
+    // Size requests so the fixed round trip is at most a tenth of the time spent on each one.
+    private static final double LATENCY_SHARE = 0.1;
+
+    private final int maxActions;
+    private final long maxBytes;
+    private final int maxChunkSize;
+    private final boolean resizeChunks;
+
+    private volatile int chunkSize;
+    private volatile int bulkActions;
+    private volatile boolean settled = false;
+
+    private int probesSent = 0;
+    private int samples = 0;
+
+    private double sumBytes;
+    private double sumMillis;
+    private double sumBytesSquared;
+    private double sumBytesMillis;
+
+    private long latencyMillis;
+    private long bytesPerSecond;
+
+    public AdaptiveTuner(int chunkSize, int maxActions, long maxBytes, boolean resizeChunks) {
+        this.maxActions = Math.max(1, maxActions);
+        this.maxBytes = maxBytes;
+        this.resizeChunks = resizeChunks;
+
+        this.maxChunkSize = (int) Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, maxBytes / 4));
+
+        this.chunkSize = chunkSize;
+
+        this.bulkActions = probeActions(0);
+    }
+
+    public AdaptiveTuner(AdaptiveTuner previous, int maxActions, long maxBytes, boolean resizeChunks) {
+        this(previous.chunkSize, maxActions, maxBytes, resizeChunks);
+
+        // Later files in the same run start from what the first one measured, instead of probing again.
+        this.bulkActions = Math.min(this.maxActions, previous.bulkActions);
+        this.latencyMillis = previous.latencyMillis;
+        this.bytesPerSecond = previous.bytesPerSecond;
+        this.settled = true;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getBulkActions() {
+        return bulkActions;
+    }
+
+    public boolean isSettled() {
+        return settled;
+    }
+
+    public long getLatencyMillis() {
+        return latencyMillis;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public synchronized void requestSent() {
+        if (settled) {
+            return;
+        }
+
+        probesSent++;
+
+        bulkActions = probeActions(probesSent);
+    }
+
+    private int probeActions(int probe) {
+        // Probe requests double in size, so the samples spread out enough to separate latency from throughput.
+        long bytes = Math.min(maxBytes, PROBE_START_BYTES << Math.min(probe, 20));
+
+        return (int) Math.max(1, Math.min(maxActions, (bytes + chunkSize - 1) / chunkSize));
+    }
+
+    public synchronized void finish() {
+        // A file that ended during the probe still records what it measured, if there is enough to fit.
+        if (!settled && samples >= MIN_SAMPLES) {
+            settle();
+        }
+    }
+
+    public synchronized void record(long bytes, long nanos) {
+        if (settled) {
+            return;
+        }
+
+        double millis = nanos / 1e6;
+
+        samples++;
+
+        sumBytes += bytes;
+        sumMillis += millis;
+        sumBytesSquared += (double) bytes * bytes;
+        sumBytesMillis += bytes * millis;
+
+        if (samples >= PROBE_REQUESTS) {
+            settle();
+        }
+    }
+
+    private void settle() {
+        // Least squares fit of time = latency + bytes / throughput over the probe requests.
+        double meanBytes = sumBytes / samples;
+        double meanMillis = sumMillis / samples;
+        double variance = sumBytesSquared / samples - meanBytes * meanBytes;
+        double slope = variance > 0 ? (sumBytesMillis / samples - meanBytes * meanMillis) / variance : 0;
+
+        double latency = Math.max(0, meanMillis - slope * meanBytes);
+
+        long requestBytes;
+
+        if (slope <= 0) {
+            // Time did not grow with size at all, so the transfer itself is not what limits us.
+            latency = meanMillis;
+
+            requestBytes = maxBytes;
+
+            bytesPerSecond = meanMillis > 0 ? (long) (meanBytes / meanMillis * 1000) : 0;
+        } else {
+            bytesPerSecond = (long) (1000 / slope);
+
+            requestBytes = (long) (latency / slope * (1 - LATENCY_SHARE) / LATENCY_SHARE);
+        }
+
+        latencyMillis = Math.round(latency);
+
+        requestBytes = Math.max(MIN_REQUEST_BYTES, Math.min(maxBytes, requestBytes));
+
+        if (resizeChunks) {
+            chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(maxChunkSize, Integer.highestOneBit((int) Math.min(Integer.MAX_VALUE, requestBytes / CHUNKS_PER_REQUEST))));
+        }
+
+        bulkActions = (int) Math.max(1, Math.min(maxActions, requestBytes / chunkSize));
+
+        settled = true;
+
+        System.out.println(String.format("Adaptive sizing: %d ms round trip, %.2f MB/s, using %d byte chunks and %d chunk(s) per bulk request%s.",
+            latencyMillis,
+            bytesPerSecond / (1024.0 * 1024),
+            chunkSize,
+            bulkActions,
+            resizeChunks ? "" : " (chunk size is fixed by the chunker)"
+        ));
+    }
+}
@@ -0,0 +1,482 @@
+package personal.ibonny.esstorage.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.bulk.BulkItemResponse;
+import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.client.ResponseException;
+import org.elasticsearch.client.ResponseListener;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.xcontent.DeprecationHandler;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import personal.ibonny.esstorage.models.ChunkModel;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class BulkChunkWriter implements Closeable {
+    private static final int MAX_RETRIES = 3;
+    private static final long RETRY_BACKOFF_MILLIS = 500;
+    private static final int ACTION_OVERHEAD_BYTES = 128;
+
+    private static final String INCREMENT_REFS =
+        "if (ctx._source.refs == null) { ctx._source.refs = params.count } else { ctx._source.refs += params.count }";
+
+    private static final String MARK_UPLOAD = " ctx._source.upload = params.upload";
+
+    private final RestHighLevelClient client;
+    private final RequestOptions options;
+    private final ObjectMapper mapper;
+    private final XContentType contentType;
+    private final String indexName;
+    private final int maxActions;
+    private final long maxBytes;
+    private final int maxInFlight;
+    private final boolean contentAddressed;
+    private final OperationStats stats;
+
+    private final byte separator;
+
+    private byte[] incrementRefs;
+
+    private final Semaphore inFlight;
+    private final AtomicReference<IOException> failure = new AtomicReference<>();
+    private final AtomicLong chunksWritten = new AtomicLong();
+    private final AtomicLong chunksSkipped = new AtomicLong();
+
+    private final ScheduledExecutorService retryScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "bulk-retry");
+
+        thread.setDaemon(true);
+
+        return thread;
+    });
+
+    private final Set<String> seen = new HashSet<>();
+
+    private AdaptiveTuner tuner = null;
+
+    private String uploadId = null;
+
+    private final BitSet confirmed = new BitSet();
+    private int nextSequence = 0;
+
+    private List<Item> pending = new ArrayList<>();
+    private long pendingBytes = 0;
+
+    private static class Item {
+        final String id;
+        final byte[] source;
+        final int sequence;
+
+        boolean increment = false;
+        boolean stored = false;
+
+        Item(String id, byte[] source, int sequence) {
+            this.id = id;
+            this.source = source;
+            this.sequence = sequence;
+        }
+    }
+
+    public BulkChunkWriter(RestHighLevelClient client, RequestOptions options, ObjectMapper mapper, XContentType contentType, String indexName, int maxActions, long maxBytes, int maxInFlight, boolean contentAddressed, OperationStats stats) throws IOException {
+        this.client = client;
+        this.options = options;
+        this.mapper = mapper;
+        this.contentType = contentType;
+        this.indexName = indexName;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.maxInFlight = maxInFlight;
+        this.contentAddressed = contentAddressed;
+        this.stats = stats;
+
+        this.separator = contentType.xContent().streamSeparator();
+
+        this.incrementRefs = mapper.writeValueAsBytes(Map.of("script", Map.of(
+            "source", INCREMENT_REFS,
+            "lang", Script.DEFAULT_SCRIPT_LANG,
+            "params", Map.of("count", 1)
+        )));
+
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public void add(ChunkModel chunk) throws IOException {
+        checkFailure();
+
+        int sequence = nextSequence++;
+
+        if (contentAddressed) {
+            if (!seen.add(chunk.getId())) {
+                // The earlier copy comes first in the file, so the confirmed prefix cannot pass it before it is stored.
+                confirm(sequence);
+
+                return;
+            }
+
+            chunk.setRefs(1);
+            chunk.setUpload(uploadId);
+        }
+
+        long started = System.nanoTime();
+
+        byte[] source = mapper.writeValueAsBytes(chunk);
+
+        stats.recordClient("client.encode", System.nanoTime() - started);
+
+        pending.add(new Item(chunk.getId(), source, sequence));
+
+        pendingBytes += source.length + ACTION_OVERHEAD_BYTES;
+
+        if (pending.size() >= (tuner == null ? maxActions : tuner.getBulkActions()) || pendingBytes >= maxBytes) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        checkFailure();
+
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<Item> items = pending;
+
+        pending = new ArrayList<>();
+        pendingBytes = 0;
+
+        if (tuner != null) {
+            tuner.requestSent();
+        }
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting to send chunks.");
+        }
+
+        if (contentAddressed) {
+            sendNewChunks(items);
+        } else {
+            send(items, 0);
+        }
+    }
+
+    public void awaitCompletion() throws IOException {
+        flush();
+
+        drain();
+
+        checkFailure();
+    }
+
+    public long getChunksWritten() {
+        return chunksWritten.get();
+    }
+
+    public long getChunksSkipped() {
+        return chunksSkipped.get();
+    }
+
+    public void setTuner(AdaptiveTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    public void setUploadId(String uploadId) throws IOException {
+        this.uploadId = uploadId;
+
+        this.incrementRefs = mapper.writeValueAsBytes(Map.of("script", Map.of(
+            "source", INCREMENT_REFS + MARK_UPLOAD,
+            "lang", Script.DEFAULT_SCRIPT_LANG,
+            "params", Map.of("count", 1, "upload", uploadId)
+        )));
+    }
+
+    public void markStored(Collection<String> chunkIds) {
+        seen.addAll(chunkIds);
+    }
+
+    public synchronized int getConfirmedCount() {
+        return confirmed.nextClearBit(0);
+    }
+
+    private synchronized void confirm(int sequence) {
+        confirmed.set(sequence);
+    }
+
+    @Override
+    public void close() {
+        drain();
+
+        retryScheduler.shutdownNow();
+    }
+
+    private void drain() {
+        inFlight.acquireUninterruptibly(maxInFlight);
+
+        inFlight.release(maxInFlight);
+    }
+
+    private void checkFailure() throws IOException {
+        IOException e = failure.get();
+
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    private void fail(Exception e) {
+        failure.compareAndSet(null, e instanceof IOException ? (IOException) e : new IOException(e));
+
+        inFlight.release();
+    }
+
+    private void sendNewChunks(List<Item> items) {
+        MultiGetRequest existing = new MultiGetRequest();
+
+        FetchSourceContext fetchSource = uploadId == null
+            ? FetchSourceContext.DO_NOT_FETCH_SOURCE
+            : new FetchSourceContext(true, new String[] { "upload" }, null);
+
+        for (Item item : items) {
+            existing.add(new MultiGetRequest.Item(indexName, item.id).fetchSourceContext(fetchSource));
+        }
+
+        client.mgetAsync(existing, options, new ActionListener<>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                for (int i = 0; i < items.size(); i++) {
+                    MultiGetItemResponse item = response.getResponses()[i];
+
+                    if (!item.isFailed() && item.getResponse().isExists()) {
+                        chunksSkipped.incrementAndGet();
+
+                        Map<String, Object> source = item.getResponse().getSourceAsMap();
+
+                        // Marked by this upload before it was interrupted, so the reference is already held.
+                        if (uploadId != null && source != null && uploadId.equals(source.get("upload"))) {
+                            items.get(i).stored = true;
+                        } else {
+                            items.get(i).increment = true;
+                        }
+                    }
+                }
+
+                List<Item> remaining = new ArrayList<>(items.size());
+
+                for (Item item : items) {
+                    if (item.stored) {
+                        confirm(item.sequence);
+                    } else {
+                        remaining.add(item);
+                    }
+                }
+
+                if (remaining.isEmpty()) {
+                    inFlight.release();
+
+                    return;
+                }
+
+                send(remaining, 0);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                fail(e);
+            }
+        });
+    }
+
+    private byte[] bulkBody(List<Item> items) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        for (Item item : items) {
+            String action = item.increment ? "update" : contentAddressed ? "create" : "index";
+
+            body.write(mapper.writeValueAsBytes(Map.of(action, Map.of("_index", indexName, "_id", item.id))));
+            body.write(separator);
+
+            body.write(item.increment ? incrementRefs : item.source);
+            body.write(separator);
+        }
+
+        return body.toByteArray();
+    }
+
+    private void send(List<Item> items, int attempt) {
+        // The chunk sources are already serialized in the wire format, so the bulk body is assembled from those
+        // bytes directly instead of letting the high level client parse and re-encode every document.
+        Request request = new Request("POST", "/_bulk");
+
+        request.setOptions(options);
+
+        byte[] body;
+
+        try {
+            body = bulkBody(items);
+        } catch (IOException e) {
+            fail(e);
+
+            return;
+        }
+
+        request.setEntity(new NByteArrayEntity(body, ContentType.create(contentType.mediaTypeWithoutParameters())));
+
+        long started = System.nanoTime();
+
+        client.getLowLevelClient().performRequestAsync(request, new ResponseListener() {
+            @Override
+            public void onSuccess(Response response) {
+                BulkResponse bulkResponse;
+
+                long parseStarted = System.nanoTime();
+
+                try {
+                    bulkResponse = parseResponse(response.getEntity());
+                } catch (Exception e) {
+                    fail(e);
+
+                    return;
+                }
+
+                stats.recordClient("client.parse", System.nanoTime() - parseStarted);
+
+                // Only clean first attempts are timed, retries and rejections would skew the fit.
+                if (tuner != null && attempt == 0 && !bulkResponse.hasFailures()) {
+                    tuner.record(body.length, System.nanoTime() - started);
+                }
+
+                handleResponse(items, bulkResponse, attempt);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                if (e instanceof ResponseException && attempt < MAX_RETRIES
+                    && isRetryable(RestStatus.fromCode(((ResponseException) e).getResponse().getStatusLine().getStatusCode()))) {
+                    System.out.println("Retrying rejected bulk request of " + items.size() + " chunk(s).");
+
+                    retry(items, attempt);
+
+                    return;
+                }
+
+                fail(e);
+            }
+        });
+    }
+
+    private static BulkResponse parseResponse(HttpEntity entity) throws IOException {
+        XContentType type = XContentType.fromMediaTypeOrFormat(entity.getContentType().getValue());
+
+        try (
+            InputStream content = entity.getContent();
+            XContentParser parser = type.xContent().createParser(NamedXContentRegistry.EMPTY, DeprecationHandler.THROW_UNSUPPORTED_OPERATION, content)
+        ) {
+            return BulkResponse.fromXContent(parser);
+        }
+    }
+
+    private void handleResponse(List<Item> items, BulkResponse response, int attempt) {
+        if (!response.hasFailures()) {
+            chunksWritten.addAndGet(items.size());
+
+            stats.addChunks("bulk", items.size());
+
+            items.forEach(x -> confirm(x.sequence));
+
+            inFlight.release();
+
+            return;
+        }
+
+        List<Item> retries = new ArrayList<>();
+        List<String> failures = new ArrayList<>();
+
+        for (BulkItemResponse result : response.getItems()) {
+            Item item = items.get(result.getItemId());
+
+            if (!result.isFailed()) {
+                chunksWritten.incrementAndGet();
+
+                stats.addChunks("bulk", 1);
+
+                confirm(item.sequence);
+
+                continue;
+            }
+
+            RestStatus status = result.getFailure().getStatus();
+
+            if (attempt >= MAX_RETRIES) {
+                failures.add(item.id + ": " + result.getFailureMessage());
+            } else if (contentAddressed && status == RestStatus.CONFLICT && !item.increment) {
+                // Another upload created the same chunk after our existence check, so just take a reference to it.
+                item.increment = true;
+
+                retries.add(item);
+            } else if (contentAddressed && status == RestStatus.NOT_FOUND && item.increment) {
+                // The chunk was garbage collected after our existence check, so write it again.
+                item.increment = false;
+
+                retries.add(item);
+            } else if (isRetryable(status)) {
+                retries.add(item);
+            } else {
+                failures.add(item.id + ": " + result.getFailureMessage());
+            }
+        }
+
+        if (!failures.isEmpty()) {
+            fail(new IOException(failures.size() + " chunk(s) failed to store, first failure was " + failures.get(0)));
+
+            return;
+        }
+
+        System.out.println("Retrying " + retries.size() + " rejected chunk(s).");
+
+        retry(retries, attempt);
+    }
+
+    private void retry(List<Item> items, int attempt) {
+        stats.addRetries("bulk", 1);
+
+        retryScheduler.schedule(() -> send(items, attempt + 1), RETRY_BACKOFF_MILLIS * (attempt + 1), TimeUnit.MILLISECONDS);
+    }
+
+    private static boolean isRetryable(RestStatus status) {
+        return status == RestStatus.TOO_MANY_REQUESTS || status == RestStatus.SERVICE_UNAVAILABLE;
+    }
+}
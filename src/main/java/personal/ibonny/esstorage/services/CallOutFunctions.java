@@ -1,10 +1,10 @@
 package personal.ibonny.esstorage.services;
 
+import personal.ibonny.esstorage.models.ChunkCodec;
 import personal.ibonny.esstorage.models.FileModel;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
 import java.util.Comparator;
 import java.util.List;
@@ -17,10 +17,19 @@ public class CallOutFunctions {
     private int bufferSize;
     private String hostPort;
     private boolean optimalBufferSize;
+    private long offset;
+    private long length;
+    private boolean resume;
+    private boolean recursive;
+    private int workers;
+    private long packThreshold;
+    private int packSize;
 
-    ESService esService = new ESService();
+    private final ESService esService;
+
+    public CallOutFunctions(ESService esService) throws Exception {
+        this.esService = esService;
 
-    public CallOutFunctions() throws Exception {
         FUNCTIONS = Map.of(
             "cat", CallOutFunctions.class.getMethod("catFunction", List.class),
             "list", CallOutFunctions.class.getMethod("listFunction", List.class),
@@ -37,18 +46,18 @@ public class CallOutFunctions {
 
         String inputFileName = parameters.get(0);
 
-        ByteArrayOutputStream baos = esService.getFile(inputFileName);
-
-        ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-
-        int numBytes;
-
-        byte[] buffer = new byte[1024];
+        try {
+            if (esService.getFile(inputFileName, offset, length, System.out) < 0) {
+                return 1;
+            }
+        } catch (IOException e) {
+            System.out.println("Error reading file " + inputFileName + ": " + e.getMessage());
 
-        while ((numBytes = bais.read(buffer, 0, 1024)) != -1) {
-            System.out.write(buffer, 0, numBytes);
+            return 1;
         }
 
+        System.out.flush();
+
         return 0;
     }
 
@@ -58,8 +67,6 @@ public class CallOutFunctions {
         if (files.size() == 0) {
             System.out.println("\n   No files found.\n");
 
-            esService.closeClient();
-
             return 0;
         }
 
@@ -97,7 +104,7 @@ public class CallOutFunctions {
             System.out.println(String.format("%10d %-" + maxFileLength + "s %d (%d)",
                     fm.getFilesize(),
                     fm.getFilename(),
-                    fm.getChunkList().size(),
+                    chunkCount(fm),
                     fm.getChunkSize()
             ));
         }
@@ -105,6 +112,15 @@ public class CallOutFunctions {
         return 0;
     }
 
+    private static int chunkCount(FileModel fm) {
+        if (fm.getChunkCount() != null) {
+            return fm.getChunkCount();
+        }
+
+        // Entries written before the count was stored always used fixed size chunks.
+        return (int) ((fm.getFilesize() + fm.getChunkSize() - 1) / Math.max(1, fm.getChunkSize()));
+    }
+
     private int calculateOptimpalBufferSize(String inputFileName) {
         File file = new File(inputFileName);
 
@@ -136,6 +152,19 @@ public class CallOutFunctions {
             return 1;
         }
 
+        if (recursive) {
+            String destination = parameters.size() > 1 ? parameters.get(1) : null;
+
+            boolean ok = new TreeTransfer(esService, workers, packThreshold, packSize).storeTree(
+                parameters.get(0),
+                destination,
+                file -> optimalBufferSize ? calculateOptimpalBufferSize(file.getPath()) : bufferSize,
+                resume
+            );
+
+            return ok ? 0 : 1;
+        }
+
         if (parameters.size() == 1) {
             inputFileName = parameters.get(0);
             outputFileName = parameters.get(0);
@@ -154,7 +183,9 @@ public class CallOutFunctions {
 
         System.out.println("Attempting to write " + inputFileName + " to output name: " + outputFileName);
 
-        esService.storeFile(inputFileName, outputFileName, bufferSize);
+        if (!esService.storeFile(inputFileName, outputFileName, bufferSize, resume)) {
+            return 1;
+        }
 
         return 0;
     }
@@ -164,5 +195,42 @@ public class CallOutFunctions {
         this.sortOrder = (String) parameters.get("sortOrder");
         this.hostPort = (String) parameters.get("hostPort");
         this.optimalBufferSize = (boolean) parameters.get("optimalBufferSize");
+        this.offset = (long) parameters.get("offset");
+        this.length = (long) parameters.get("length");
+        this.resume = (boolean) parameters.get("resume");
+        this.recursive = (boolean) parameters.get("recursive");
+        this.workers = (int) parameters.get("workers");
+        this.packThreshold = (long) parameters.get("packThreshold");
+        this.packSize = (int) parameters.get("packSize");
+
+        esService.setBulkLimits((int) parameters.get("bulkMaxActions"), (long) parameters.get("bulkMaxBytes"));
+
+        esService.setParallelRequests((int) parameters.get("parallel"));
+
+        esService.setFetchBatchSize((int) parameters.get("fetchBatchSize"));
+
+        esService.setReadAhead((int) parameters.get("readAhead"));
+
+        esService.setContentAddressed((boolean) parameters.get("dedup"));
+
+        esService.setChunker(
+            (String) parameters.get("chunker"),
+            (int) parameters.get("minChunkSize"),
+            (int) parameters.get("maxChunkSize")
+        );
+
+        esService.setCodec(ChunkCodec.fromName((String) parameters.get("codec")));
+
+        esService.setAdaptive((boolean) parameters.get("adaptive"));
+
+        esService.setChunkFormat((String) parameters.get("chunkFormat"));
+
+        esService.setChunkCache((String) parameters.get("cacheDir"), (long) parameters.get("cacheBytes"));
+
+        esService.setMetadataTtl((long) parameters.get("metadataTtl"));
+
+        esService.setScrollKeepAlive((long) parameters.get("scrollKeepAlive"));
+
+        esService.setCheckpointDirectory((String) parameters.get("checkpointDir"));
     }
 }
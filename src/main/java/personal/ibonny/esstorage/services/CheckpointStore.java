@@ -0,0 +1,160 @@
+package personal.ibonny.esstorage.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import personal.ibonny.esstorage.models.UploadCheckpoint;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+
+public class CheckpointStore {
+    public static final String DEFAULT_DIRECTORY = Paths.get(System.getProperty("user.home"), ".es-storage", "checkpoints").toString();
+
+    private final Path directory;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public CheckpointStore(String directory) {
+        this.directory = Paths.get(directory);
+    }
+
+    public UploadCheckpoint load(String destination) {
+        Path path = pathFor(destination, ".json");
+
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        try {
+            UploadCheckpoint checkpoint = mapper.readValue(path.toFile(), UploadCheckpoint.class);
+
+            loadManifest(checkpoint, pathFor(destination, ".chunks"));
+
+            Path reserved = pathFor(destination, ".reserved");
+
+            if (Files.exists(reserved)) {
+                checkpoint.setReservedChunks(Files.readAllLines(reserved, StandardCharsets.UTF_8));
+            }
+
+            return checkpoint;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error reading checkpoint " + path + ": " + e.getMessage());
+
+            return null;
+        }
+    }
+
+    // Starts a new upload, dropping whatever an earlier upload to the same destination left behind.
+    public void start(UploadCheckpoint checkpoint) {
+        Path path = pathFor(checkpoint.getDestination(), ".json");
+
+        try {
+            Files.deleteIfExists(pathFor(checkpoint.getDestination(), ".chunks"));
+            Files.deleteIfExists(pathFor(checkpoint.getDestination(), ".reserved"));
+
+            replace(path, mapper.writeValueAsBytes(checkpoint));
+        } catch (IOException e) {
+            System.out.println("Error writing checkpoint " + path + ": " + e.getMessage());
+        }
+    }
+
+    // Only the newly confirmed chunks are written, so the cost of checkpointing grows with the file, not its square.
+    public void append(UploadCheckpoint checkpoint, List<String> chunkIds, List<Long> chunkOffsets, List<Integer> chunkLengths, List<Long> chunkCrcs) {
+        Path path = pathFor(checkpoint.getDestination(), ".chunks");
+
+        try (Writer out = Files.newBufferedWriter(path, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            for (int i = 0; i < chunkIds.size(); i++) {
+                out.write(chunkIds.get(i) + " " + chunkOffsets.get(i) + " " + chunkLengths.get(i) + " " + chunkCrcs.get(i) + "\n");
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing checkpoint " + path + ": " + e.getMessage());
+        }
+    }
+
+    public void reserve(UploadCheckpoint checkpoint, Collection<String> chunkIds) {
+        Path path = pathFor(checkpoint.getDestination(), ".reserved");
+
+        try {
+            replace(path, String.join("\n", chunkIds).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            System.out.println("Error writing checkpoint " + path + ": " + e.getMessage());
+        }
+    }
+
+    public void delete(String destination) {
+        try {
+            Files.deleteIfExists(pathFor(destination, ".json"));
+            Files.deleteIfExists(pathFor(destination, ".chunks"));
+            Files.deleteIfExists(pathFor(destination, ".reserved"));
+        } catch (IOException e) {
+            System.out.println("Error removing checkpoint for " + destination + ": " + e.getMessage());
+        }
+    }
+
+    private static void loadManifest(UploadCheckpoint checkpoint, Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        String manifest = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+
+        // A line without its newline was cut off while it was written, so the manifest ends before it.
+        int complete = manifest.lastIndexOf('\n') + 1;
+
+        long size = 0;
+
+        for (String line : manifest.substring(0, complete).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            String[] fields = line.split(" ");
+
+            if (fields.length != 4 || Long.parseLong(fields[1]) != size) {
+                throw new IOException("Corrupt manifest entry: " + line);
+            }
+
+            int length = Integer.parseInt(fields[2]);
+
+            checkpoint.getChunkList().add(fields[0]);
+            checkpoint.getChunkOffsets().add(size);
+            checkpoint.getChunkLengths().add(length);
+            checkpoint.getChunkCrcs().add(Long.parseLong(fields[3]));
+
+            size += length;
+        }
+
+        checkpoint.setConfirmedSize(size);
+
+        if (complete < manifest.length()) {
+            // Later entries are appended after the last complete one, not after the cut off line.
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(manifest.substring(0, complete).getBytes(StandardCharsets.UTF_8).length);
+            }
+        }
+    }
+
+    private void replace(Path path, byte[] data) throws IOException {
+        Files.createDirectories(directory);
+
+        Path temp = Files.createTempFile(directory, path.getFileName().toString(), ".tmp");
+
+        Files.write(temp, data);
+
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Path pathFor(String destination, String extension) {
+        byte[] name = destination.getBytes(StandardCharsets.UTF_8);
+
+        return directory.resolve(ChunkReader.contentId(name, name.length) + extension);
+    }
+}
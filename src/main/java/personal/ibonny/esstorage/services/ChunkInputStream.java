@@ -0,0 +1,130 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.ChunkModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class ChunkInputStream extends InputStream {
+    private final ESService esService;
+    private final List<String> chunkIds;
+
+    private final ChunkWindow window;
+
+    private int nextConsumed = 0;
+
+    private List<ChunkModel> batch = List.of();
+    private int batchPosition = 0;
+
+    private byte[] data;
+    private int position = 0;
+    private int limit = 0;
+
+    private int skip;
+    private long remaining;
+
+    public ChunkInputStream(ESService esService, List<String> chunkIds) {
+        this(esService, chunkIds, 0, Long.MAX_VALUE);
+    }
+
+    public ChunkInputStream(ESService esService, List<String> chunkIds, int skip, long length) {
+        this.esService = esService;
+        this.chunkIds = chunkIds;
+        this.skip = skip;
+        this.remaining = length;
+
+        this.window = new ChunkWindow(esService, chunkIds, 0, chunkIds.size(), true, true);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        remaining--;
+
+        esService.getStats().addFileBytes(1);
+
+        return data[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int numBytes = (int) Math.min(len, Math.min(limit - position, remaining));
+
+        System.arraycopy(data, position, b, off, numBytes);
+
+        position += numBytes;
+        remaining -= numBytes;
+
+        esService.getStats().addFileBytes(numBytes);
+
+        return numBytes;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(limit - position, remaining);
+    }
+
+    @Override
+    public void close() {
+        window.close();
+
+        batch = List.of();
+    }
+
+    private boolean fill() throws IOException {
+        if (remaining <= 0) {
+            return false;
+        }
+
+        while (position >= limit) {
+            if (batchPosition >= batch.size()) {
+                ChunkWindow.Batch next = window.next();
+
+                batchPosition = 0;
+
+                if (next == null) {
+                    batch = List.of();
+
+                    return false;
+                }
+
+                batch = next.chunks;
+            }
+
+            ChunkModel chunk = batch.get(batchPosition);
+
+            if (chunk == null) {
+                throw new IOException("Chunk not found: " + chunkIds.get(nextConsumed));
+            }
+
+            if (chunk.isCorrupt()) {
+                throw new IOException("Chunk could not be decoded: " + chunkIds.get(nextConsumed));
+            }
+
+            batch.set(batchPosition++, null);
+
+            nextConsumed++;
+
+            data = chunk.getData();
+            position = skip;
+            limit = chunk.getLength();
+
+            skip = 0;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,143 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.chunkers.Chunker;
+import personal.ibonny.esstorage.models.ChunkCodec;
+import personal.ibonny.esstorage.models.ChunkModel;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32C;
+
+public class ChunkReader implements Runnable {
+    private static final ChunkModel END_OF_INPUT = new ChunkModel();
+
+    private final Chunker chunker;
+    private final BlockingQueue<ChunkModel> queue;
+    private final boolean contentAddressed;
+    private final ChunkCodec codec;
+
+    private final MessageDigest fileDigest;
+
+    private volatile IOException error;
+
+    public ChunkReader(Chunker chunker, int queueCapacity, boolean contentAddressed, ChunkCodec codec) {
+        this(chunker, queueCapacity, contentAddressed, codec, sha256());
+    }
+
+    public ChunkReader(Chunker chunker, int queueCapacity, boolean contentAddressed, ChunkCodec codec, MessageDigest fileDigest) {
+        this.chunker = chunker;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.contentAddressed = contentAddressed;
+        this.codec = codec;
+        this.fileDigest = fileDigest;
+    }
+
+    public static String contentId(byte[] data, int length) {
+        MessageDigest digest = sha256();
+
+        digest.update(data, 0, length);
+
+        return toHex(digest.digest());
+    }
+
+    public static long crc32c(byte[] data, int length) {
+        CRC32C crc = new CRC32C();
+
+        crc.update(data, 0, length);
+
+        return crc.getValue();
+    }
+
+    public static void compress(ChunkModel chunk, ChunkCodec codec) throws IOException {
+        if (codec == ChunkCodec.NONE) {
+            return;
+        }
+
+        byte[] compressed = codec.compress(chunk.getData());
+
+        if (compressed.length < chunk.getData().length) {
+            chunk.setData(compressed);
+            chunk.setCodec(codec);
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return sb.toString();
+    }
+
+    @Override
+    public void run() {
+        byte[] data;
+
+        try {
+            while ((data = chunker.next()) != null) {
+                ChunkModel chunk = new ChunkModel(data, data.length);
+
+                chunk.setCrc32c(crc32c(data, data.length));
+
+                fileDigest.update(data);
+
+                if (contentAddressed) {
+                    chunk.setId(contentId(data, data.length));
+                }
+
+                compress(chunk, codec);
+
+                queue.put(chunk);
+            }
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            return;
+        }
+
+        try {
+            queue.put(END_OF_INPUT);
+        } catch (InterruptedException ignored) {
+        }
+    }
+
+    public String getFileDigest() {
+        return toHex(fileDigest.digest());
+    }
+
+    public ChunkModel take() throws IOException {
+        ChunkModel chunk;
+
+        try {
+            chunk = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while waiting for input.");
+        }
+
+        if (chunk == END_OF_INPUT) {
+            if (error != null) {
+                throw error;
+            }
+
+            return null;
+        }
+
+        return chunk;
+    }
+}
@@ -0,0 +1,113 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.ChunkModel;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// Keeps several batches of chunks in flight, so readers wait on the network as little as possible.
+class ChunkWindow {
+    static class Batch {
+        final int start;
+        final List<ChunkModel> chunks;
+
+        Batch(int start, List<ChunkModel> chunks) {
+            this.start = start;
+            this.chunks = chunks;
+        }
+    }
+
+    private final ESService esService;
+    private final List<String> chunkIds;
+    private final int end;
+    private final boolean useCache;
+    private final boolean inOrder;
+
+    private final Map<Integer, CompletableFuture<List<ChunkModel>>> inFlight = new HashMap<>();
+    private final Deque<Integer> requested = new ArrayDeque<>();
+    private final BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+
+    private int next;
+
+    // With inOrder false, batches are handed out as they arrive instead of in chunk order.
+    ChunkWindow(ESService esService, List<String> chunkIds, int start, int end, boolean useCache, boolean inOrder) {
+        this.esService = esService;
+        this.chunkIds = chunkIds;
+        this.next = start;
+        this.end = end;
+        this.useCache = useCache;
+        this.inOrder = inOrder;
+    }
+
+    Batch next() throws IOException {
+        requestAhead();
+
+        if (inFlight.isEmpty()) {
+            return null;
+        }
+
+        int start;
+
+        if (inOrder) {
+            start = requested.poll();
+        } else {
+            try {
+                start = completed.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+
+                throw new IOException("Interrupted while fetching chunks.");
+            }
+
+            requested.remove(start);
+        }
+
+        CompletableFuture<List<ChunkModel>> future = inFlight.remove(start);
+
+        // Top the window back up before blocking, so the next batches are fetched while this one is consumed.
+        requestAhead();
+
+        try {
+            return new Batch(start, future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+
+            throw new IOException("Interrupted while fetching chunks.");
+        } catch (ExecutionException e) {
+            throw new IOException("Error fetching chunks: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    void close() {
+        inFlight.clear();
+        requested.clear();
+
+        next = end;
+    }
+
+    private void requestAhead() {
+        while (inFlight.size() < esService.getReadAhead() && next < end) {
+            int start = next;
+            int batchEnd = Math.min(end, start + esService.getFetchBatchSize());
+
+            CompletableFuture<List<ChunkModel>> future = esService.getChunksAsync(chunkIds.subList(start, batchEnd), useCache);
+
+            inFlight.put(start, future);
+            requested.add(start);
+
+            if (!inOrder) {
+                future.whenComplete((x, e) -> completed.add(start));
+            }
+
+            next = batchEnd;
+        }
+    }
+}
@@ -0,0 +1,212 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.ChunkModel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class DiskChunkCache {
+    private static final String LOCK_FILE = ".lock";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final double EVICT_TO_FRACTION = 0.9;
+
+    private final Path directory;
+    private final long maxBytes;
+
+    private final AtomicLong usedBytes = new AtomicLong(-1);
+
+    private static class Entry {
+        final Path path;
+        final long size;
+        final FileTime lastUsed;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.size = attributes.size();
+            this.lastUsed = attributes.lastModifiedTime();
+        }
+    }
+
+    public DiskChunkCache(String directory, long maxBytes) throws IOException {
+        this.directory = Paths.get(directory);
+        this.maxBytes = maxBytes;
+
+        Files.createDirectories(this.directory);
+    }
+
+    public ChunkModel get(String chunkId) {
+        Path path = pathFor(chunkId);
+
+        byte[] data;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+
+            data = buffer.array();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            System.out.println("Error reading cached chunk " + chunkId + ": " + e.getMessage());
+
+            return null;
+        }
+
+        // The modification time doubles as the last use time, so every process sharing the directory sees the same LRU order.
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+        }
+
+        ChunkModel chunk = new ChunkModel(data, data.length);
+
+        chunk.setId(chunkId);
+
+        return chunk;
+    }
+
+    public void put(ChunkModel chunk) {
+        Path path = pathFor(chunk.getId());
+
+        if (Files.exists(path)) {
+            return;
+        }
+
+        Path temp = null;
+
+        try {
+            Files.createDirectories(path.getParent());
+
+            temp = Files.createTempFile(path.getParent(), chunk.getId(), TEMP_SUFFIX);
+
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk.getData(), 0, chunk.getLength());
+
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+
+            // Readers in other processes only ever see complete entries.
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("Error caching chunk " + chunk.getId() + ": " + e.getMessage());
+
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                }
+            }
+
+            return;
+        }
+
+        long used = usedBytes.get() < 0 ? -1 : usedBytes.addAndGet(chunk.getLength());
+
+        if (used < 0 || used > maxBytes) {
+            evict();
+        }
+    }
+
+    private Path pathFor(String chunkId) {
+        if (chunkId.isEmpty() || !chunkId.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-' || c == '_')) {
+            throw new IllegalArgumentException("Invalid chunk id: " + chunkId);
+        }
+
+        String shard = chunkId.length() < 2 ? chunkId : chunkId.substring(0, 2);
+
+        return directory.resolve(shard).resolve(chunkId);
+    }
+
+    private synchronized void evict() {
+        try (
+            FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = lockChannel.tryLock()
+        ) {
+            if (lock == null) {
+                // Another process is already evicting, so just pick up its result on the next write.
+                usedBytes.compareAndSet(-1, 0);
+
+                return;
+            }
+
+            List<Entry> entries = listEntries();
+
+            long total = entries.stream().mapToLong(x -> x.size).sum();
+
+            if (total > maxBytes) {
+                long target = (long) (maxBytes * EVICT_TO_FRACTION);
+
+                entries.sort(Comparator.comparing(x -> x.lastUsed));
+
+                for (Entry entry : entries) {
+                    if (total <= target) {
+                        break;
+                    }
+
+                    try {
+                        Files.deleteIfExists(entry.path);
+                    } catch (IOException e) {
+                        continue;
+                    }
+
+                    total -= entry.size;
+                }
+            }
+
+            usedBytes.set(total);
+        } catch (OverlappingFileLockException e) {
+            usedBytes.compareAndSet(-1, 0);
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error evicting cached chunks: " + e.getMessage());
+        }
+    }
+
+    private List<Entry> listEntries() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                if (path.getNameCount() - directory.getNameCount() != 2 || path.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    continue;
+                }
+
+                try {
+                    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+                    if (attributes.isRegularFile()) {
+                        entries.add(new Entry(path, attributes));
+                    }
+                } catch (NoSuchFileException ignored) {
+                }
+            }
+        }
+
+        return entries;
+    }
+}
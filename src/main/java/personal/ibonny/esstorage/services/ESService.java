@@ -1,69 +1,355 @@
 package personal.ibonny.esstorage.services;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
 import org.apache.http.HttpHost;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequest;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequest;
+import org.elasticsearch.action.DocWriteResponse;
+import org.elasticsearch.action.bulk.BulkItemResponse;
 import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetResponse;
 import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexResponse;
 import org.elasticsearch.action.search.SearchRequest;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.update.UpdateRequest;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.Request;
 import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.Response;
 import org.elasticsearch.client.RestClient;
+import org.elasticsearch.client.RestClientBuilder;
 import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.client.core.CountRequest;
 import org.elasticsearch.client.indices.CreateIndexRequest;
 import org.elasticsearch.client.indices.CreateIndexResponse;
 import org.elasticsearch.client.indices.GetIndexRequest;
+import org.elasticsearch.client.sniff.SniffOnFailureListener;
+import org.elasticsearch.client.sniff.Sniffer;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.rest.RestStatus;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import personal.ibonny.esstorage.chunkers.Chunker;
+import personal.ibonny.esstorage.chunkers.FastCdcChunker;
+import personal.ibonny.esstorage.chunkers.FixedSizeChunker;
+import personal.ibonny.esstorage.models.ChunkCodec;
 import personal.ibonny.esstorage.models.ChunkModel;
+import personal.ibonny.esstorage.models.ClientSettings;
+import personal.ibonny.esstorage.models.FileCheckResult;
 import personal.ibonny.esstorage.models.FileModel;
+import personal.ibonny.esstorage.models.UploadCheckpoint;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ESService {
     public static final String FILE_INDEX_NAME = "file_index";
     public static final String CHUNK_INDEX_NAME = "chunk_index";
 
+    public static final int DEFAULT_BULK_MAX_ACTIONS = 500;
+    public static final long DEFAULT_BULK_MAX_BYTES = 5 * 1024 * 1024;
+    public static final int DEFAULT_FETCH_BATCH_SIZE = 50;
+    public static final int DEFAULT_READ_AHEAD = 4;
+    public static final long DEFAULT_SCROLL_KEEP_ALIVE_MILLIS = 10 * 60 * 1000;
+
+    private static final int SCROLL_PAGE_SIZE = 1000;
+    private static final int CHECKPOINT_INTERVAL = 256;
+
+    // Smaller files are quicker to store again than to resume.
+    private static final long MIN_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_CONTENT_LENGTH = 100 * 1024 * 1024;
+
     private RestHighLevelClient client;
+    private Sniffer sniffer = null;
+
+    private int bulkMaxActions = DEFAULT_BULK_MAX_ACTIONS;
+    private long bulkMaxBytes = DEFAULT_BULK_MAX_BYTES;
+    private int parallelRequests = 1;
+    private int fetchBatchSize = DEFAULT_FETCH_BATCH_SIZE;
+    private int readAhead = DEFAULT_READ_AHEAD;
+    private boolean contentAddressed = false;
+    private String chunker = "fixed";
+    private int minChunkSize = 0;
+    private int maxChunkSize = 0;
+    private ChunkCodec codec = ChunkCodec.NONE;
+    private DiskChunkCache chunkCache = null;
+
+    private boolean adaptive = false;
+    private volatile AdaptiveTuner lastTuning = null;
+    private long maxContentLength = -1;
+
+    // A scroll page is only renewed once the consumer has worked through the previous one, which for
+    // integrity checks and recursive gets of large files can take much longer than a search usually does.
+    private TimeValue scrollKeepAlive = TimeValue.timeValueMillis(DEFAULT_SCROLL_KEEP_ALIVE_MILLIS);
+
+    private CheckpointStore checkpoints = new CheckpointStore(CheckpointStore.DEFAULT_DIRECTORY);
+
+    private int replicas = -1;
+    private String refreshInterval = null;
+
+    private final FileMetadataCache fileCache = new FileMetadataCache(FileMetadataCache.DEFAULT_TTL_MILLIS);
 
     ObjectMapper mapper = new ObjectMapper();
 
-    public ESService() {
-        client = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost("192.168.1.224", 9200, "http")
-            )
-        );
+    private ObjectMapper chunkMapper = mapper;
+    private XContentType chunkContentType = XContentType.JSON;
+    private final OperationStats stats = new OperationStats();
 
-        createIndex(FILE_INDEX_NAME);
+    // Every request goes through the stats consumer, so latency and bytes are recorded for each call.
+    private final RequestOptions requestOptions = instrumentedOptions(stats);
 
-        createIndex(CHUNK_INDEX_NAME);
-    }
+    private RequestOptions chunkReadOptions = requestOptions;
 
     public ESService(String host, int port) {
-        client = new RestHighLevelClient(
-            RestClient.builder(
-                new HttpHost(host, port, "http")
-            )
-        );
+        this(host, port, -1, null);
+    }
+
+    public ESService(String host, int port, int replicas, String refreshInterval) {
+        this(new ClientSettings(host, port), replicas, refreshInterval);
+    }
+
+    public ESService(ClientSettings settings, int replicas, String refreshInterval) {
+        client = createClient(settings);
+
+        this.replicas = replicas;
+        this.refreshInterval = refreshInterval;
+
+        createIndex(FILE_INDEX_NAME, fileIndexMapping(), replicas, refreshInterval);
+
+        createIndex(CHUNK_INDEX_NAME, chunkIndexMapping(), replicas, refreshInterval);
+    }
+
+    private RestHighLevelClient createClient(ClientSettings settings) {
+        HttpHost[] hosts = settings.getHosts().stream()
+            .map(x -> HttpHost.create(x.contains("://") ? x : "http://" + x))
+            .toArray(HttpHost[]::new);
+
+        LeastLoadedNodeSelector leastLoaded = settings.getNodeSelector().equals("least-loaded") ? new LeastLoadedNodeSelector() : null;
+
+        SniffOnFailureListener sniffOnFailure = settings.isSniff() ? new SniffOnFailureListener() : null;
+
+        RestClientBuilder builder = RestClient.builder(hosts)
+            .setRequestConfigCallback(x -> x
+                .setConnectTimeout(settings.getConnectTimeoutMillis())
+                .setSocketTimeout(settings.getSocketTimeoutMillis()))
+            .setHttpClientConfigCallback(x -> {
+                x.addInterceptorLast(stats.requestInterceptor());
+
+                x.setMaxConnTotal(settings.getMaxConnections());
+                x.setMaxConnPerRoute(settings.getMaxConnectionsPerNode());
+
+                // Reuse connections for the configured time, or less if the server asks for it.
+                x.setKeepAliveStrategy((response, context) -> {
+                    long requested = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+
+                    return requested > 0 ? Math.min(requested, settings.getKeepAliveMillis()) : settings.getKeepAliveMillis();
+                });
+
+                IOReactorConfig.Builder reactor = IOReactorConfig.custom()
+                    .setSoKeepAlive(true)
+                    .setTcpNoDelay(true);
+
+                if (settings.getIoThreads() > 0) {
+                    reactor.setIoThreadCount(settings.getIoThreads());
+                }
+
+                x.setDefaultIOReactorConfig(reactor.build());
+
+                if (leastLoaded != null) {
+                    x.addInterceptorLast(leastLoaded.requestInterceptor());
+                    x.addInterceptorLast(leastLoaded.responseInterceptor());
+                }
+
+                return x;
+            })
+            .setFailureListener(new RestClient.FailureListener() {
+                @Override
+                public void onFailure(Node node) {
+                    if (leastLoaded != null) {
+                        leastLoaded.failed(node);
+                    }
+
+                    if (sniffOnFailure != null) {
+                        sniffOnFailure.onFailure(node);
+                    }
+                }
+            });
+
+        if (leastLoaded != null) {
+            builder.setNodeSelector(leastLoaded);
+        }
+
+        RestHighLevelClient highLevelClient = new RestHighLevelClient(builder);
+
+        if (sniffOnFailure != null) {
+            // Pick up every data node in the cluster, so chunk traffic is not limited to the hosts given.
+            sniffer = Sniffer.builder(highLevelClient.getLowLevelClient())
+                .setSniffIntervalMillis((int) settings.getSniffIntervalMillis())
+                .build();
+
+            sniffOnFailure.setSniffer(sniffer);
+        }
+
+        return highLevelClient;
+    }
+
+    public void setBulkLimits(int maxActions, long maxBytes) {
+        this.bulkMaxActions = maxActions;
+        this.bulkMaxBytes = maxBytes;
+    }
+
+    public void setParallelRequests(int parallelRequests) {
+        this.parallelRequests = Math.max(1, parallelRequests);
+    }
+
+    public void setFetchBatchSize(int fetchBatchSize) {
+        this.fetchBatchSize = Math.max(1, fetchBatchSize);
+    }
+
+    public int getFetchBatchSize() {
+        return fetchBatchSize;
+    }
+
+    public void setReadAhead(int readAhead) {
+        this.readAhead = Math.max(1, readAhead);
+    }
+
+    public int getReadAhead() {
+        return readAhead;
+    }
+
+    public void setContentAddressed(boolean contentAddressed) {
+        this.contentAddressed = contentAddressed;
+    }
+
+    public void setChunker(String chunker, int minChunkSize, int maxChunkSize) {
+        if (!chunker.equals("fixed") && !chunker.equals("cdc")) {
+            throw new IllegalArgumentException("Unsupported chunker: " + chunker);
+        }
+
+        this.chunker = chunker;
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+    }
 
-        createIndex(FILE_INDEX_NAME);
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public void setCodec(ChunkCodec codec) {
+        this.codec = codec;
+    }
+
+    public void setChunkCache(String directory, long maxBytes) {
+        if (directory == null || directory.isEmpty()) {
+            this.chunkCache = null;
+
+            return;
+        }
+
+        try {
+            this.chunkCache = new DiskChunkCache(directory, maxBytes);
+        } catch (IOException e) {
+            System.out.println("Error opening chunk cache, continuing without it: " + e.getMessage());
+
+            this.chunkCache = null;
+        }
+    }
+
+    public void setCheckpointDirectory(String directory) {
+        this.checkpoints = new CheckpointStore(directory == null || directory.isEmpty() ? CheckpointStore.DEFAULT_DIRECTORY : directory);
+    }
+
+    public void setMetadataTtl(long ttlMillis) {
+        fileCache.setTtlMillis(ttlMillis);
+    }
+
+    public void setScrollKeepAlive(long keepAliveMillis) {
+        scrollKeepAlive = TimeValue.timeValueMillis(keepAliveMillis);
+    }
+
+    public void setChunkFormat(String format) {
+        switch (format) {
+            case "json":
+                chunkMapper = mapper;
+                chunkContentType = XContentType.JSON;
+                break;
+            case "smile":
+                // Bulk bodies use 0xFF to separate SMILE documents, so binary data must not be written raw.
+                chunkMapper = new ObjectMapper(SmileFactory.builder()
+                    .enable(SmileGenerator.Feature.ENCODE_BINARY_AS_7BIT)
+                    .build());
+                chunkContentType = XContentType.SMILE;
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported chunk format: " + format);
+        }
+
+        // Ask for responses in the same format, so chunk sources come back as raw bytes instead of re-encoded text.
+        chunkReadOptions = requestOptions.toBuilder()
+            .addHeader("Accept", chunkContentType.mediaTypeWithoutParameters())
+            .build();
+    }
+
+    private static RequestOptions instrumentedOptions(OperationStats stats) {
+        RequestOptions.Builder builder = RequestOptions.DEFAULT.toBuilder();
 
-        createIndex(CHUNK_INDEX_NAME);
+        builder.setHttpAsyncResponseConsumerFactory(stats.responseConsumerFactory());
+
+        return builder.build();
+    }
+
+    public OperationStats getStats() {
+        return stats;
     }
 
     public void closeClient() {
+        if (sniffer != null) {
+            sniffer.close();
+        }
+
         try {
             client.close();
         } catch (IOException e) {
@@ -71,45 +357,120 @@ public class ESService {
         }
     }
 
-    private boolean createIndex(String indexName) {
+    private static Map<String, Object> chunkIndexMapping() {
+        return Map.of(
+            "dynamic", false,
+            "properties", Map.of(
+                "id", Map.of("type", "keyword"),
+                "data", Map.of("type", "binary", "doc_values", false),
+                "length", Map.of("type", "integer", "index", false),
+                "refs", Map.of("type", "integer"),
+                "codec", Map.of("type", "keyword"),
+                "crc32c", Map.of("type", "long", "index", false),
+                "upload", Map.of("type", "keyword", "index", false)
+            )
+        );
+    }
+
+    private static Map<String, Object> fileIndexMapping() {
+        return Map.of(
+            "dynamic", false,
+            "properties", Map.ofEntries(
+                Map.entry("id", Map.of("type", "keyword")),
+                Map.entry("bucket", Map.of("type", "keyword")),
+                Map.entry("prefix", Map.of("type", "keyword")),
+                Map.entry("filename", Map.of("type", "keyword")),
+                Map.entry("chunkSize", Map.of("type", "integer")),
+                Map.entry("chunkCount", Map.of("type", "integer")),
+                Map.entry("filesize", Map.of("type", "long")),
+                Map.entry("contentAddressed", Map.of("type", "boolean")),
+                Map.entry("sha256", Map.of("type", "keyword")),
+                Map.entry("chunkList", Map.of("type", "keyword", "index", false, "doc_values", false)),
+                Map.entry("chunkOffsets", Map.of("type", "long", "index", false, "doc_values", false)),
+                Map.entry("chunkLengths", Map.of("type", "integer", "index", false, "doc_values", false)),
+                Map.entry("packOffset", Map.of("type", "long", "index", false)),
+                Map.entry("bulkActions", Map.of("type", "integer", "index", false)),
+                Map.entry("bulkLatencyMillis", Map.of("type", "long", "index", false)),
+                Map.entry("bulkBytesPerSecond", Map.of("type", "long", "index", false))
+            )
+        );
+    }
+
+    private static Settings.Builder dynamicIndexSettings(int replicas, String refreshInterval) {
+        Settings.Builder settings = Settings.builder();
+
+        if (replicas >= 0) {
+            settings.put("index.number_of_replicas", replicas);
+        }
+
+        if (refreshInterval != null && !refreshInterval.isEmpty()) {
+            settings.put("index.refresh_interval", refreshInterval);
+        }
+
+        return settings;
+    }
+
+    private boolean createIndex(String indexName, Map<String, Object> mapping, int replicas, String refreshInterval) {
         GetIndexRequest request = new GetIndexRequest(indexName);
 
         boolean exists;
 
         try {
-            exists = client.indices().exists(request, RequestOptions.DEFAULT);
+            exists = client.indices().exists(request, requestOptions);
         } catch (IOException e) {
             e.printStackTrace();
 
             return false;
         }
 
-        if (!exists) {
-            CreateIndexRequest cur = new CreateIndexRequest(indexName);
+        Settings.Builder settings = dynamicIndexSettings(replicas, refreshInterval);
 
-            cur.settings(
-                Settings.builder().put("index.number_of_shards", 3)
-            );
+        if (exists) {
+            if (settings.keys().isEmpty()) {
+                return true;
+            }
+
+            UpdateSettingsRequest usr = new UpdateSettingsRequest(indexName);
 
-            CreateIndexResponse cir;
+            usr.settings(settings);
 
             try {
-                cir = client.indices().create(cur, RequestOptions.DEFAULT);
+                client.indices().putSettings(usr, requestOptions);
             } catch (IOException e) {
                 e.printStackTrace();
 
                 return false;
             }
 
-            if (!cir.isAcknowledged()) {
-                System.out.println("ERROR CREATING INDEX " + indexName + "!!!!");
+            return true;
+        }
 
-                return false;
-            }
+        CreateIndexRequest cur = new CreateIndexRequest(indexName);
+
+        cur.settings(
+            settings.put("index.number_of_shards", 3)
+        );
+
+        cur.mapping(mapping);
+
+        CreateIndexResponse cir;
+
+        try {
+            cir = client.indices().create(cur, requestOptions);
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            return false;
+        }
 
-            System.out.println("Created Index " + indexName + ".");
+        if (!cir.isAcknowledged()) {
+            System.out.println("ERROR CREATING INDEX " + indexName + "!!!!");
+
+            return false;
         }
 
+        System.out.println("Created Index " + indexName + ".");
+
         return true;
     }
 
@@ -124,7 +485,7 @@ public class ESService {
 
         SearchResponse sRes = null;
         try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
+            sRes = client.search(sr, requestOptions);
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -135,27 +496,13 @@ public class ESService {
     }
 
     public List<String> searchForChunks() {
-        SearchRequest sr = new SearchRequest(CHUNK_INDEX_NAME);
-
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
-
-        ssb.query(QueryBuilders.matchAllQuery());
-
-        sr.source(ssb);
-
-        SearchResponse sRes;
-
-        try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
-        } catch (IOException e) {
+        try (Stream<String> ids = scroll(CHUNK_INDEX_NAME, FetchSourceContext.DO_NOT_FETCH_SOURCE, SearchHit::getId)) {
+            return ids.collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
             e.printStackTrace();
 
             return new ArrayList<>();
         }
-
-        return Arrays.stream(sRes.getHits().getHits())
-            .map(SearchHit::getId)
-            .collect(Collectors.toList());
     }
 
     public ChunkModel getChunkById(String chunkId) {
@@ -170,7 +517,7 @@ public class ESService {
         SearchResponse sRes;
 
         try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
+            sRes = client.search(sr, requestOptions);
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -187,53 +534,110 @@ public class ESService {
     }
 
     public List<String> searchForFiles() {
-        SearchRequest sr = new SearchRequest(FILE_INDEX_NAME);
+        try (Stream<String> ids = scroll(FILE_INDEX_NAME, FetchSourceContext.DO_NOT_FETCH_SOURCE, SearchHit::getId)) {
+            return ids.collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            e.printStackTrace();
+
+            return new ArrayList<>();
+        }
+    }
+
+    private <T> Stream<T> scroll(String indexName, FetchSourceContext source, Function<SearchHit, T> converter) {
+        return scroll(indexName, QueryBuilders.matchAllQuery(), source, converter);
+    }
+
+    private <T> Stream<T> scroll(String indexName, QueryBuilder query, FetchSourceContext source, Function<SearchHit, T> converter) {
+        SearchRequest sr = new SearchRequest(indexName);
 
         SearchSourceBuilder ssb = new SearchSourceBuilder();
 
-        ssb.query(QueryBuilders.matchAllQuery());
+        ssb.query(query);
+
+        ssb.fetchSource(source);
+
+        ssb.size(SCROLL_PAGE_SIZE);
+
+        ssb.sort("_doc");
 
         sr.source(ssb);
 
-        SearchResponse sRes;
+        ScrollIterator<T> it = new ScrollIterator<>(client, requestOptions, sr, scrollKeepAlive, converter);
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(it, Spliterator.ORDERED), false)
+            .onClose(it::close);
+    }
+
+    public Stream<FileModel> streamFiles(boolean includeChunks) {
+        return streamFiles(null, includeChunks);
+    }
 
+    public Stream<FileModel> streamFiles(String directory, boolean includeChunks) {
+        String prefix = directory == null ? "" : directory.replaceAll("/+$", "");
+
+        // Match whole directories, so "foo" does not also pick up everything under "foobar/".
+        QueryBuilder query = prefix.isEmpty()
+            ? QueryBuilders.matchAllQuery()
+            : QueryBuilders.prefixQuery("filename", prefix + "/");
+
+        // The chunk lists make up almost all of a large file entry, so listings leave them out.
+        FetchSourceContext source = includeChunks
+            ? FetchSourceContext.FETCH_SOURCE
+            : new FetchSourceContext(true, null, new String[] { "chunkList", "chunkOffsets", "chunkLengths" });
+
+        return scroll(FILE_INDEX_NAME, query, source, x -> {
+            try {
+                return mapper.readValue(x.getSourceAsString(), FileModel.class);
+            } catch (JsonProcessingException e) {
+                System.out.println("Error reading record: " + e.getMessage());
+
+                return null;
+            }
+        }).filter(Objects::nonNull);
+    }
+
+    private FileMetadataCache.Entry lookupFile(String filename) {
         try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
+            return findFile(filename);
         } catch (IOException e) {
             e.printStackTrace();
 
-            return new ArrayList<>();
+            return null;
         }
-
-        return Arrays.stream(sRes.getHits().getHits())
-                .map(SearchHit::getId)
-                .collect(Collectors.toList());
     }
 
-    private String getFileModelIndexId(String filename) {
+    private FileMetadataCache.Entry findFile(String filename) throws IOException {
+        FileMetadataCache.Entry cached = fileCache.get(filename);
+
+        if (cached != null) {
+            return cached;
+        }
+
         SearchRequest sr = new SearchRequest(FILE_INDEX_NAME);
 
         SearchSourceBuilder ssb = new SearchSourceBuilder();
 
         ssb.query(QueryBuilders.termQuery("filename", filename));
 
-        sr.source(ssb);
+        ssb.size(1);
 
-        SearchResponse sRes;
+        sr.source(ssb);
 
-        try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            e.printStackTrace();
+        SearchResponse sRes = client.search(sr, requestOptions);
 
+        if (sRes.getHits().getHits().length == 0) {
             return null;
         }
 
-        if (sRes.getHits().getTotalHits().value == 0) {
+        SearchHit hit = sRes.getHits().getHits()[0];
+
+        try {
+            return fileCache.put(filename, hit.getId(), mapper.readValue(hit.getSourceAsString(), FileModel.class));
+        } catch (JsonProcessingException e) {
+            System.out.println("Error processing record: " + e.getMessage());
+
             return null;
         }
-
-        return sRes.getHits().getHits()[0].getId();
     }
 
     public List<FileModel> searchForFile(String filename) {
@@ -248,7 +652,7 @@ public class ESService {
         SearchResponse sRes;
 
         try {
-            sRes = client.search(sr, RequestOptions.DEFAULT);
+            sRes = client.search(sr, requestOptions);
         } catch (IOException e) {
             e.printStackTrace();
 
@@ -272,372 +676,1145 @@ public class ESService {
     public IndexResponse storeChunk(ChunkModel chunk) throws IOException {
         IndexRequest request = new IndexRequest(CHUNK_INDEX_NAME);
 
-        request.id(UUID.randomUUID().toString());
+        request.id(chunk.getId());
 
-        request.source(mapper.writeValueAsString(chunk), XContentType.JSON);
+        request.source(chunkMapper.writeValueAsBytes(chunk), chunkContentType);
 
-        return client.index(request, RequestOptions.DEFAULT);
+        return client.index(request, requestOptions);
     }
 
-    private IndexResponse writeFileIndex(String filename, long size, int chunkSize, List<String> chunks) throws IOException {
-        FileModel fileModel = new FileModel(filename, size, chunkSize, chunks);
-
+    private IndexResponse writeFileIndex(FileModel fileModel) throws IOException {
         IndexRequest request = new IndexRequest(FILE_INDEX_NAME);
 
         request.id(UUID.randomUUID().toString());
 
         request.source(mapper.writeValueAsString(fileModel), XContentType.JSON);
 
-        return client.index(request, RequestOptions.DEFAULT);
+        return client.index(request, requestOptions);
     }
 
-    public boolean storeFile(String filename, String destination, int bufferSize) {
-        byte[] buffer = new byte[bufferSize];
-
-        int numBytes;
-
-        List<FileModel> fm = searchForFile(destination);
-
-        if (fm.size() > 0) {
-            System.out.println("\n   File already exists: " + destination + "\n");
+    private Chunker createChunker(InputStream input, int bufferSize, AdaptiveTuner tuner) {
+        if (chunker.equals("cdc")) {
+            int min = minChunkSize > 0 ? minChunkSize : Math.max(64, bufferSize / 4);
+            int max = maxChunkSize > 0 ? maxChunkSize : bufferSize * 4;
 
-            return false;
+            return new FastCdcChunker(input, min, bufferSize, max);
         }
 
-        List<String> chunkIndexes = new ArrayList<>();
-
-        long size = 0;
-
-        File inputFile = new File(filename);
-
-        if (!inputFile.exists()) {
-            System.out.println("\n   Error, cannot find file: " + inputFile.getAbsolutePath() + "\n");
+        if (tuner != null) {
+            return new FixedSizeChunker(input, tuner::getChunkSize);
         }
 
-        try (FileInputStream fis = new FileInputStream(inputFile)) {
-            while ((numBytes = fis.read(buffer, 0, buffer.length)) != -1) {
-                size += numBytes;
+        return new FixedSizeChunker(input, bufferSize);
+    }
 
-                ChunkModel chunk = new ChunkModel(buffer, numBytes);
+    private int readQueueCapacity(int bufferSize, AdaptiveTuner tuner) {
+        int largestChunk = bufferSize;
 
-                IndexResponse indexResponse = storeChunk(chunk);
+        if (chunker.equals("cdc")) {
+            largestChunk = maxChunkSize > 0 ? maxChunkSize : bufferSize * 4;
+        } else if (tuner != null) {
+            largestChunk = AdaptiveTuner.MAX_CHUNK_SIZE;
+        }
 
-                chunkIndexes.add(indexResponse.getId());
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+        // Queue about as many bytes as the bulk writer can have in flight, so memory stays flat whatever the chunk size.
+        return (int) Math.max(2, Math.min(Integer.MAX_VALUE, bulkMaxBytes * parallelRequests / Math.max(1, largestChunk)));
+    }
 
-            return false;
+    private AdaptiveTuner newTuner(int bufferSize) {
+        if (!adaptive) {
+            return null;
         }
 
-        try {
-            IndexResponse wfir = writeFileIndex(destination, size, bufferSize, chunkIndexes);
+        // Content defined chunks keep their boundaries for deduplication, so only the batch size is tuned for them.
+        boolean resizeChunks = !chunker.equals("cdc");
 
-            System.out.println(String.format("File %s written out with index %s, filesize of %d, and %d chunk entries.",
-                filename,
-                wfir.getId(),
-                size,
-                chunkIndexes.size()
-            ));
-        } catch (IOException e) {
-            System.out.println("Error writing out file " + filename + ": " + e.getMessage());
+        // Stay well inside the cluster's request size limit, whatever the configured bulk size.
+        long maxBytes = Math.min(bulkMaxBytes, getMaxContentLength() / 2);
 
-            return false;
+        AdaptiveTuner previous = lastTuning;
+
+        if (previous != null) {
+            return new AdaptiveTuner(previous, bulkMaxActions, maxBytes, resizeChunks);
         }
 
-        return true;
+        return new AdaptiveTuner(bufferSize, bulkMaxActions, maxBytes, resizeChunks);
     }
 
-    public void deleteAll() {
-        List<String> ids = searchForChunks();
+    private synchronized long getMaxContentLength() {
+        if (maxContentLength > 0) {
+            return maxContentLength;
+        }
 
-        if (ids.size() == 0) {
-            System.out.println("No chunk entries to delete.");
-        } else {
-            BulkRequest br = new BulkRequest();
+        maxContentLength = DEFAULT_MAX_CONTENT_LENGTH;
 
-            for (String id : ids) {
-                br.add(new DeleteRequest("chunk_index", id));
-            }
+        Request request = new Request("GET", "/_cluster/settings");
 
-            BulkResponse response;
+        request.addParameter("include_defaults", "true");
+        request.addParameter("flat_settings", "true");
+        request.addParameter("filter_path", "*.http.max_content_length");
 
-            try {
-                response = client.bulk(br, RequestOptions.DEFAULT);
-            } catch (IOException e) {
-                System.out.println("ERROR:  " + e.getMessage());
+        request.setOptions(requestOptions);
 
-                return;
-            }
+        try {
+            Response response = client.getLowLevelClient().performRequest(request);
 
-            System.out.println(response.getItems().length + " chunk entries deleted.");
-        }
+            JsonNode settings = mapper.readTree(response.getEntity().getContent());
 
-        ids = searchForFiles();
+            for (String section : List.of("transient", "persistent", "defaults")) {
+                JsonNode value = settings.path(section).path("http.max_content_length");
 
-        if (ids.size() == 0) {
-            System.out.println("No entries to delete.");
-        } else {
-            BulkRequest br = new BulkRequest();
+                if (value.isTextual()) {
+                    maxContentLength = ByteSizeValue.parseBytesSizeValue(value.asText(), "http.max_content_length").getBytes();
 
-            for (String id : ids) {
-                br.add(new DeleteRequest("file_index", id));
+                    break;
+                }
             }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not read http.max_content_length, assuming " + DEFAULT_MAX_CONTENT_LENGTH + " bytes: " + e.getMessage());
+        }
 
-            BulkResponse response;
+        return maxContentLength;
+    }
 
-            try {
-                response = client.bulk(br, RequestOptions.DEFAULT);
-            } catch (IOException e) {
-                System.out.println("ERROR:  " + e.getMessage());
+    public boolean storeFile(String filename, String destination, int bufferSize) {
+        return storeFile(filename, destination, bufferSize, false);
+    }
 
-                return;
-            }
+    public boolean storeFile(String filename, String destination, int bufferSize, boolean resume) {
+        if (lookupFile(destination) != null) {
+            System.out.println("\n   File already exists: " + destination + "\n");
 
-            System.out.println(response.getItems().length + " file entries deleted.");
+            return false;
         }
-    }
 
-    public void delete(String filename) {
-        List<FileModel> fm = searchForFile(filename);
+        return storeNewFile(filename, destination, bufferSize, resume);
+    }
 
-        if (fm.size() == 0) {
-            System.out.println("\n   Cannot find file: " + filename + "\n");
+    // For callers that have just looked the destination up themselves, so it is not searched for twice.
+    boolean storeNewFile(String filename, String destination, int bufferSize, boolean resume) {
+        File inputFile = new File(filename);
 
-            return;
+        if (!inputFile.exists()) {
+            System.out.println("\n   Error, cannot find file: " + inputFile.getAbsolutePath() + "\n");
         }
 
-        BulkRequest br = new BulkRequest();
+        UploadCheckpoint checkpoint = inputFile.length() >= MIN_CHECKPOINT_BYTES ? newCheckpoint(inputFile, destination, bufferSize) : null;
 
-        for (String id : fm.get(0).getChunkList()) {
-            br.add(new DeleteRequest("chunk_index", id));
-        }
+        if (resume && checkpoint != null) {
+            UploadCheckpoint previous = checkpoints.load(destination);
 
-        BulkResponse response;
+            if (previous == null) {
+                System.out.println("No checkpoint found for " + destination + ", starting from the beginning.");
+            } else if (!checkpointMatches(previous, checkpoint)) {
+                System.out.println("Source file or settings changed since the checkpoint, starting from the beginning.");
+            } else {
+                checkpoint = previous;
+            }
+        }
 
-        try {
-            response = client.bulk(br, RequestOptions.DEFAULT);
+        try (InputStream input = openSource(inputFile)) {
+            return writeFile(input, filename, destination, bufferSize, checkpoint);
         } catch (IOException e) {
-            System.out.println("ERROR:  " + e.getMessage());
+            e.printStackTrace();
 
-            return;
+            return false;
+        }
+    }
+
+    private static InputStream openSource(File inputFile) throws IOException {
+        // Regular files are mapped, so chunks are copied straight out of the page cache instead of through read buffers.
+        if (inputFile.isFile() && inputFile.length() > 0) {
+            return new MappedFileInputStream(inputFile.toPath());
+        }
+
+        return new FileInputStream(inputFile);
+    }
+
+    public boolean storeStream(InputStream input, String destination, int bufferSize) {
+        if (lookupFile(destination) != null) {
+            System.out.println("\n   File already exists: " + destination + "\n");
+
+            return false;
         }
 
-        System.out.println(response.getItems().length + " chunk entries deleted.");
+        // A stream cannot be read a second time, so there is no checkpoint to resume from.
+        return writeFile(input, destination, destination, bufferSize, null);
+    }
 
-        String fileId = getFileModelIndexId(filename);
+    private boolean writeFile(InputStream input, String source, String destination, int bufferSize, UploadCheckpoint checkpoint) {
+        List<String> chunkIndexes = new ArrayList<>(checkpoint != null ? checkpoint.getChunkList() : List.of());
+        List<Long> chunkOffsets = new ArrayList<>(checkpoint != null ? checkpoint.getChunkOffsets() : List.of());
+        List<Integer> chunkLengths = new ArrayList<>(checkpoint != null ? checkpoint.getChunkLengths() : List.of());
+        List<Long> chunkCrcs = new ArrayList<>(checkpoint != null ? checkpoint.getChunkCrcs() : List.of());
+
+        long size = checkpoint != null ? checkpoint.getConfirmedSize() : 0;
+
+        String fileDigest;
+
+        AdaptiveTuner tuner = newTuner(bufferSize);
+
+        try (BulkChunkWriter writer = new BulkChunkWriter(client, requestOptions, chunkMapper, chunkContentType, CHUNK_INDEX_NAME, bulkMaxActions, bulkMaxBytes, parallelRequests, contentAddressed, stats)) {
+            MessageDigest digest = ChunkReader.sha256();
+
+            if (size > 0) {
+                if (!verifyCheckpoint(input, checkpoint, digest)) {
+                    System.out.println("Source file no longer matches the checkpoint, store it again without --resume.");
+
+                    return false;
+                }
+
+                System.out.println(String.format("Resuming %s at byte %d with %d chunk(s) already stored.", source, size, chunkIndexes.size()));
+
+                writer.markStored(chunkIndexes);
+            }
+
+            if (checkpoint != null) {
+                releaseReservedChunks(checkpoint);
+
+                if (chunkIndexes.isEmpty()) {
+                    checkpoints.start(checkpoint);
+                }
+
+                if (contentAddressed) {
+                    writer.setUploadId(checkpoint.getUploadId());
+                }
+            }
+
+            int resumedChunks = chunkIndexes.size();
+            int checkpointed = resumedChunks;
+
+            // Random chunk ids are handed out from a batch that is checkpointed before any of them is written,
+            // so a resumed upload knows which chunks it may have left behind.
+            Deque<String> reserved = checkpoint != null && !contentAddressed ? new ArrayDeque<>() : null;
+
+            writer.setTuner(tuner);
+
+            ChunkReader reader = new ChunkReader(createChunker(input, bufferSize, tuner), readQueueCapacity(bufferSize, tuner), contentAddressed, codec, digest);
+
+            Thread readerThread = new Thread(reader, "chunk-reader");
+
+            readerThread.start();
+
+            try {
+                ChunkModel chunk;
+
+                while ((chunk = reader.take()) != null) {
+                    chunkOffsets.add(size);
+                    chunkLengths.add(chunk.getLength());
+                    chunkCrcs.add(chunk.getCrc32c());
+
+                    size += chunk.getLength();
+
+                    if (reserved != null) {
+                        if (reserved.isEmpty()) {
+                            for (int i = 0; i < CHECKPOINT_INTERVAL; i++) {
+                                reserved.add(UUID.randomUUID().toString());
+                            }
+
+                            // Every id that can be written before the next reservation is listed, including the unconfirmed ones.
+                            List<String> unconfirmed = new ArrayList<>(chunkIndexes.subList(checkpointed, chunkIndexes.size()));
+
+                            unconfirmed.addAll(reserved);
+
+                            checkpoints.reserve(checkpoint, unconfirmed);
+                        }
+
+                        chunk.setId(reserved.poll());
+                    }
+
+                    writer.add(chunk);
+
+                    chunkIndexes.add(chunk.getId());
+
+                    int confirmed = resumedChunks + writer.getConfirmedCount();
+
+                    if (checkpoint != null && confirmed - checkpointed >= CHECKPOINT_INTERVAL) {
+                        saveCheckpoint(checkpoint, chunkIndexes, chunkOffsets, chunkLengths, chunkCrcs, checkpointed, confirmed);
+
+                        checkpointed = confirmed;
+                    }
+                }
+
+                writer.awaitCompletion();
+            } catch (IOException e) {
+                int confirmed = resumedChunks + writer.getConfirmedCount();
 
-        DeleteRequest dr = new DeleteRequest(FILE_INDEX_NAME, fileId);
+                if (checkpoint != null) {
+                    saveCheckpoint(checkpoint, chunkIndexes, chunkOffsets, chunkLengths, chunkCrcs, checkpointed, confirmed);
+
+                    System.out.println("Upload interrupted after " + confirmed + " stored chunk(s), run store again with --resume to continue.");
+                }
+
+                throw e;
+            } finally {
+                readerThread.interrupt();
+
+                // The input is closed once this returns, so the reader has to be done with it first.
+                joinUninterruptibly(readerThread);
+            }
+
+            fileDigest = reader.getFileDigest();
+
+            if (tuner != null) {
+                tuner.finish();
+            }
+
+            if (contentAddressed) {
+                System.out.println(writer.getChunksSkipped() + " chunk(s) were already stored and have been reused.");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+
+            return false;
+        }
 
         try {
-            client.delete(dr, RequestOptions.DEFAULT);
+            FileModel fileModel = new FileModel(destination, size, tuner != null ? tuner.getChunkSize() : bufferSize, chunkIndexes);
+
+            if (tuner != null && tuner.isSettled()) {
+                fileModel.setBulkActions(tuner.getBulkActions());
+                fileModel.setBulkLatencyMillis(tuner.getLatencyMillis());
+                fileModel.setBulkBytesPerSecond(tuner.getBytesPerSecond());
+
+                lastTuning = tuner;
+            }
+
+            fileModel.setChunkOffsets(chunkOffsets);
+            fileModel.setChunkLengths(chunkLengths);
+            fileModel.setContentAddressed(contentAddressed);
+            fileModel.setSha256(fileDigest);
+
+            setTree(fileModel, destination);
+
+            IndexResponse wfir = writeFileIndex(fileModel);
+
+            fileCache.put(destination, wfir.getId(), fileModel);
+
+            System.out.println(String.format("File %s written out with index %s, filesize of %d, and %d chunk entries.",
+                source,
+                wfir.getId(),
+                size,
+                chunkIndexes.size()
+            ));
         } catch (IOException e) {
-            System.out.println("ERROR:  " + e.getMessage());
+            System.out.println("Error writing out file " + source + ": " + e.getMessage());
 
-            return;
+            return false;
         }
 
-        System.out.println("File entry deleted for " + filename + ".");
+        if (checkpoint != null) {
+            checkpoints.delete(destination);
+        }
+
+        stats.addFileBytes(size);
+
+        return true;
     }
 
-    public List<FileModel> getAllFiles() {
-        SearchRequest sr = new SearchRequest();
+    private static void setTree(FileModel fileModel, String destination) {
+        int separator = destination.lastIndexOf('/');
 
-        sr.indices(FILE_INDEX_NAME);
+        // Paths like "bucket/some/dir/name" record their tree, so whole directories can be listed and fetched again.
+        if (separator > 0) {
+            fileModel.setPrefix(destination.substring(0, separator));
+            fileModel.setBucket(destination.substring(0, destination.indexOf('/')));
+        }
+    }
 
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
+    public int storePack(byte[] data, List<String> destinations, List<Long> offsets, List<Integer> lengths, List<String> digests) {
+        ChunkModel chunk = new ChunkModel(data, data.length);
 
-        ssb.query(QueryBuilders.matchAllQuery());
+        chunk.setCrc32c(ChunkReader.crc32c(data, data.length));
 
-        ssb.from(0);
-        ssb.size(10000);
+        // Every packed file holds one reference, so the pack is removed with the last of its files.
+        chunk.setRefs(destinations.size());
 
-        sr.source(ssb);
+        List<FileModel> fileModels = new ArrayList<>(destinations.size());
 
-        SearchResponse searchResponse;
+        BulkRequest br = new BulkRequest();
 
         try {
-            searchResponse = client.search(sr, RequestOptions.DEFAULT);
+            ChunkReader.compress(chunk, codec);
+
+            storeChunk(chunk);
+
+            for (int i = 0; i < destinations.size(); i++) {
+                FileModel fileModel = new FileModel(destinations.get(i), lengths.get(i), data.length, List.of(chunk.getId()));
+
+                fileModel.setPackOffset(offsets.get(i));
+                fileModel.setSha256(digests.get(i));
+
+                setTree(fileModel, destinations.get(i));
+
+                fileModels.add(fileModel);
+
+                br.add(new IndexRequest(FILE_INDEX_NAME)
+                    .id(UUID.randomUUID().toString())
+                    .source(mapper.writeValueAsString(fileModel), XContentType.JSON));
+            }
         } catch (IOException e) {
-            System.out.println("Error getting list of files: " + e.getMessage());
+            System.out.println("Error storing pack of " + destinations.size() + " file(s): " + e.getMessage());
 
-            return new ArrayList<>();
+            return 0;
         }
 
-        return Arrays.stream(searchResponse.getHits().getHits())
-            .map(x -> {
-                FileModel fm;
+        BulkResponse response;
 
-                try {
-                    fm = mapper.readValue(x.getSourceAsString(), FileModel.class);
-                } catch (JsonProcessingException e) {
-                    System.out.println("Error reading record: " + e.getMessage());
+        try {
+            response = client.bulk(br, requestOptions);
+        } catch (IOException e) {
+            System.out.println("Error writing out packed file entries: " + e.getMessage());
 
-                    return new FileModel();
-                }
+            releasePack(chunk.getId(), destinations.size());
 
-                return fm;
-            })
+            return 0;
+        }
+
+        int stored = 0;
+
+        for (BulkItemResponse item : response.getItems()) {
+            if (item.isFailed()) {
+                System.out.println("Error writing out file " + destinations.get(item.getItemId()) + ": " + item.getFailureMessage());
+
+                continue;
+            }
+
+            fileCache.put(destinations.get(item.getItemId()), item.getId(), fileModels.get(item.getItemId()));
+
+            stored++;
+        }
+
+        if (stored < destinations.size()) {
+            releasePack(chunk.getId(), destinations.size() - stored);
+        }
+
+        stats.addFileBytes(data.length);
+
+        System.out.println(String.format("Packed %d file(s) into chunk %s with %d bytes.", stored, chunk.getId(), data.length));
+
+        return stored;
+    }
+
+    private void releasePack(String chunkId, int count) {
+        try {
+            client.update(releaseChunk(chunkId, count), requestOptions);
+        } catch (IOException e) {
+            System.out.println("Error releasing pack chunk " + chunkId + ": " + e.getMessage());
+        }
+    }
+
+    private UploadCheckpoint newCheckpoint(File inputFile, String destination, int bufferSize) {
+        UploadCheckpoint checkpoint = new UploadCheckpoint();
+
+        checkpoint.setUploadId(UUID.randomUUID().toString());
+        checkpoint.setSource(inputFile.getAbsolutePath());
+        checkpoint.setDestination(destination);
+        checkpoint.setSourceSize(inputFile.length());
+        checkpoint.setSourceModified(inputFile.lastModified());
+        checkpoint.setChunkSize(bufferSize);
+        checkpoint.setChunker(chunker);
+        checkpoint.setMinChunkSize(minChunkSize);
+        checkpoint.setMaxChunkSize(maxChunkSize);
+        checkpoint.setCodec(codec);
+        checkpoint.setContentAddressed(contentAddressed);
+
+        return checkpoint;
+    }
+
+    private static boolean checkpointMatches(UploadCheckpoint previous, UploadCheckpoint current) {
+        return previous.getUploadId() != null
+            && previous.getSource().equals(current.getSource())
+            && previous.getSourceSize() == current.getSourceSize()
+            && previous.getSourceModified() == current.getSourceModified()
+            && previous.getChunkSize() == current.getChunkSize()
+            && previous.getChunker().equals(current.getChunker())
+            && previous.getMinChunkSize() == current.getMinChunkSize()
+            && previous.getMaxChunkSize() == current.getMaxChunkSize()
+            && previous.getCodec() == current.getCodec()
+            && previous.isContentAddressed() == current.isContentAddressed();
+    }
+
+    private static boolean verifyCheckpoint(InputStream input, UploadCheckpoint checkpoint, MessageDigest digest) throws IOException {
+        // Re-read the stored prefix, which also leaves the stream positioned where the upload stopped.
+        for (int i = 0; i < checkpoint.getChunkLengths().size(); i++) {
+            int length = checkpoint.getChunkLengths().get(i);
+
+            byte[] data = input.readNBytes(length);
+
+            if (data.length != length || ChunkReader.crc32c(data, length) != checkpoint.getChunkCrcs().get(i)) {
+                return false;
+            }
+
+            digest.update(data);
+        }
+
+        return true;
+    }
+
+    private void saveCheckpoint(UploadCheckpoint checkpoint, List<String> chunkIndexes, List<Long> chunkOffsets, List<Integer> chunkLengths, List<Long> chunkCrcs, int checkpointed, int confirmed) {
+        checkpoints.append(checkpoint,
+            chunkIndexes.subList(checkpointed, confirmed),
+            chunkOffsets.subList(checkpointed, confirmed),
+            chunkLengths.subList(checkpointed, confirmed),
+            chunkCrcs.subList(checkpointed, confirmed)
+        );
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                thread.join();
+
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseReservedChunks(UploadCheckpoint checkpoint) throws IOException {
+        Set<String> confirmed = new HashSet<>(checkpoint.getChunkList());
+
+        // The reservation is only rewritten for each new batch, so it can still list chunks confirmed since then.
+        List<String> reserved = checkpoint.getReservedChunks().stream()
+            .filter(x -> !x.isEmpty() && !confirmed.contains(x))
             .collect(Collectors.toList());
+
+        // The resumed upload writes under new ids, so whatever was written under the old reservation is removed first.
+        for (int start = 0; start < reserved.size(); start += bulkMaxActions) {
+            List<String> batch = reserved.subList(start, Math.min(start + bulkMaxActions, reserved.size()));
+
+            BulkRequest br = new BulkRequest();
+
+            for (String id : batch) {
+                br.add(new DeleteRequest(CHUNK_INDEX_NAME, id));
+            }
+
+            for (BulkItemResponse item : client.bulk(br, requestOptions).getItems()) {
+                if (item.isFailed() && item.getFailure().getStatus() != RestStatus.NOT_FOUND) {
+                    throw new IOException("Error removing chunk " + batch.get(item.getItemId()) + ": " + item.getFailureMessage());
+                }
+            }
+        }
+
+        checkpoint.setReservedChunks(new ArrayList<>());
     }
 
-    private ChunkModel getChunk(String chunkId) {
-        SearchRequest sr = new SearchRequest();
+    public void deleteAll() {
+        fileCache.clear();
 
-        sr.indices(CHUNK_INDEX_NAME);
+        // Dropping and recreating the indices is a single cheap operation on the cluster, however many entries they hold.
+        if (!recreateIndex(CHUNK_INDEX_NAME, chunkIndexMapping(), "chunk")) {
+            return;
+        }
 
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
+        recreateIndex(FILE_INDEX_NAME, fileIndexMapping(), "file");
+    }
 
-        ssb.query(QueryBuilders.termQuery("_id", chunkId));
+    private boolean recreateIndex(String indexName, Map<String, Object> mapping, String entryName) {
+        long count;
 
-        sr.source(ssb);
+        try {
+            count = client.count(new CountRequest(indexName), requestOptions).getCount();
+        } catch (IOException | ElasticsearchException e) {
+            System.out.println("ERROR:  " + e.getMessage());
+
+            return false;
+        }
+
+        if (count == 0) {
+            System.out.println("No " + entryName + " entries to delete.");
+
+            return true;
+        }
+
+        try {
+            client.indices().delete(new DeleteIndexRequest(indexName), requestOptions);
+        } catch (IOException | ElasticsearchException e) {
+            System.out.println("ERROR:  " + e.getMessage());
+
+            return false;
+        }
+
+        if (!createIndex(indexName, mapping, replicas, refreshInterval)) {
+            return false;
+        }
+
+        System.out.println(count + " " + entryName + " entries deleted.");
+
+        return true;
+    }
+
+    public boolean delete(String filename) {
+        FileMetadataCache.Entry entry = lookupFile(filename);
+
+        if (entry == null) {
+            System.out.println("\n   Cannot find file: " + filename + "\n");
+
+            return false;
+        }
+
+        fileCache.invalidate(filename);
+
+        boolean shared = entry.getFile().isContentAddressed() || entry.getFile().getPackOffset() != null;
+
+        List<String> chunkIds = shared
+            ? new ArrayList<>(new LinkedHashSet<>(entry.getFile().getChunkList()))
+            : entry.getFile().getChunkList();
+
+        long deleted = 0;
+        long missing = 0;
+
+        List<String> failed = new ArrayList<>();
+
+        // Send the deletes in bounded batches, so large files never build a request over the cluster's content length limit.
+        for (int start = 0; start < chunkIds.size(); start += bulkMaxActions) {
+            List<String> batch = chunkIds.subList(start, Math.min(start + bulkMaxActions, chunkIds.size()));
 
-        SearchResponse searchResponse;
+            BulkRequest br = new BulkRequest();
+
+            for (String id : batch) {
+                br.add(shared ? releaseChunk(id) : new DeleteRequest(CHUNK_INDEX_NAME, id));
+            }
+
+            BulkResponse response;
+
+            try {
+                response = client.bulk(br, requestOptions);
+            } catch (IOException e) {
+                System.out.println("\nERROR:  " + e.getMessage());
+
+                failed.addAll(chunkIds.subList(start, chunkIds.size()));
+
+                break;
+            }
+
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed() && item.getFailure().getStatus() == RestStatus.NOT_FOUND) {
+                    // Already gone, so there is nothing left to release.
+                    missing++;
+                } else if (item.isFailed()) {
+                    failed.add(batch.get(item.getItemId()));
+                } else if (item.getResponse().getResult() == DocWriteResponse.Result.DELETED) {
+                    deleted++;
+                }
+            }
+
+            System.out.printf("\rProcessed %d of %d chunk entries...", start + batch.size(), chunkIds.size());
+        }
+
+        if (!chunkIds.isEmpty()) {
+            System.out.println();
+        }
+
+        System.out.println(deleted + " chunk entries deleted.");
+
+        if (shared && deleted + missing + failed.size() < chunkIds.size()) {
+            System.out.println((chunkIds.size() - deleted - missing - failed.size()) + " chunk entries kept, still referenced by other files.");
+        }
+
+        if (!failed.isEmpty()) {
+            System.out.println(failed.size() + " chunk entries could not be deleted.");
+
+            // Chunks do not record which file they belong to, so the file entry is kept as the only way to find them again.
+            // It is narrowed to the chunks that are left, so running delete again never releases a shared chunk twice.
+            UpdateRequest narrow = new UpdateRequest(FILE_INDEX_NAME, entry.getDocumentId()).doc(Map.of("chunkList", failed));
+
+            try {
+                client.update(narrow, requestOptions);
+            } catch (IOException e) {
+                System.out.println("ERROR:  " + e.getMessage());
+            }
+
+            System.out.println("File entry kept for " + filename + ", run delete again to retry.");
+
+            return false;
+        }
+
+        DeleteRequest dr = new DeleteRequest(FILE_INDEX_NAME, entry.getDocumentId());
 
         try {
-            searchResponse = client.search(sr, RequestOptions.DEFAULT);
+            client.delete(dr, requestOptions);
+        } catch (IOException e) {
+            System.out.println("ERROR:  " + e.getMessage());
+
+            return false;
+        }
+
+        System.out.println("File entry deleted for " + filename + ".");
+
+        return true;
+    }
+
+    private UpdateRequest releaseChunk(String chunkId) {
+        return releaseChunk(chunkId, 1);
+    }
+
+    private UpdateRequest releaseChunk(String chunkId, int count) {
+        return new UpdateRequest(CHUNK_INDEX_NAME, chunkId).script(new Script(
+            ScriptType.INLINE,
+            Script.DEFAULT_SCRIPT_LANG,
+            "ctx._source.refs -= params.count; if (ctx._source.refs <= 0) { ctx.op = 'delete' }",
+            Map.of("count", count)
+        ));
+    }
+
+    public List<FileModel> getAllFiles() {
+        try (Stream<FileModel> files = streamFiles(false)) {
+            return files.collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            System.out.println("Error getting list of files: " + e.getMessage());
+
+            return new ArrayList<>();
+        }
+    }
+
+    ChunkModel getChunk(String chunkId) {
+        if (chunkCache != null) {
+            ChunkModel cached = chunkCache.get(chunkId);
+
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        GetRequest request = new GetRequest(CHUNK_INDEX_NAME, chunkId);
+
+        GetResponse response;
+
+        try {
+            response = client.get(request, chunkReadOptions);
         } catch (IOException e) {
             System.out.println("Error getting chunk: " + e.getMessage());
 
             return null;
         }
 
-        if (searchResponse.getHits().getTotalHits().value == 0) {
+        if (!response.isExists()) {
             System.out.println("Chunk not found: " + chunkId);
 
             return null;
         }
 
-        try {
-            return mapper.readValue(searchResponse.getHits().getHits()[0].getSourceAsString(), ChunkModel.class);
-        } catch (JsonProcessingException e) {
-            System.out.println("Error converting chunk: " + e.getMessage());
+        ChunkModel chunk = readChunk(response);
+
+        stats.addChunks("get", 1);
 
+        if (chunk.isCorrupt()) {
             return null;
         }
+
+        if (chunkCache != null) {
+            chunkCache.put(chunk);
+        }
+
+        return chunk;
     }
 
-    public ByteArrayOutputStream getFile(String filename) {
-        SearchRequest sr = new SearchRequest();
+    public List<ChunkModel> getChunks(List<String> chunkIds) {
+        List<ChunkModel> chunks = new ArrayList<>(chunkIds.size());
 
-        sr.indices(FILE_INDEX_NAME);
+        for (int start = 0; start < chunkIds.size(); start += fetchBatchSize) {
+            List<String> batch = chunkIds.subList(start, Math.min(start + fetchBatchSize, chunkIds.size()));
 
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
+            ChunkModel[] found = new ChunkModel[batch.size()];
 
-        ssb.query(QueryBuilders.termQuery("filename", filename));
+            List<String> missing = getCachedChunks(batch, found);
 
-        sr.source(ssb);
+            if (!missing.isEmpty()) {
+                MultiGetResponse response;
 
-        SearchResponse searchResponse;
+                try {
+                    response = client.mget(chunkRequest(missing), chunkReadOptions);
+                } catch (IOException e) {
+                    System.out.println("Error getting chunks: " + e.getMessage());
 
-        try {
-            searchResponse = client.search(sr, RequestOptions.DEFAULT);
-        } catch (IOException e) {
-            System.out.println("Error getting list of files: " + e.getMessage());
+                    chunks.addAll(Arrays.asList(found));
+
+                    continue;
+                }
+
+                mergeFetchedChunks(found, readChunks(response), true);
+            }
 
-            return new ByteArrayOutputStream();
+            chunks.addAll(Arrays.asList(found));
         }
 
-        if (searchResponse.getHits().getTotalHits().value == 0) {
-            System.out.println("File not found.");
+        return chunks;
+    }
+
+    CompletableFuture<List<ChunkModel>> getChunksAsync(List<String> chunkIds, boolean useCache) {
+        ChunkModel[] found = new ChunkModel[chunkIds.size()];
+
+        List<String> missing = useCache ? getCachedChunks(chunkIds, found) : chunkIds;
 
-            return new ByteArrayOutputStream();
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(Arrays.asList(found));
         }
 
-        FileModel fm;
+        CompletableFuture<List<ChunkModel>> future = new CompletableFuture<>();
 
-        try {
-            fm = mapper.readValue(searchResponse.getHits().getHits()[0].getSourceAsString(), FileModel.class);
-        } catch (JsonProcessingException e) {
-            System.out.println("Error reading file record: " + e.getMessage());
+        client.mgetAsync(chunkRequest(missing), chunkReadOptions, new ActionListener<>() {
+            @Override
+            public void onResponse(MultiGetResponse response) {
+                mergeFetchedChunks(found, readChunks(response), useCache);
+
+                future.complete(Arrays.asList(found));
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        return future;
+    }
+
+    private List<String> getCachedChunks(List<String> chunkIds, ChunkModel[] found) {
+        if (chunkCache == null) {
+            return chunkIds;
+        }
+
+        List<String> missing = new ArrayList<>();
 
-            return new ByteArrayOutputStream();
+        for (int i = 0; i < chunkIds.size(); i++) {
+            found[i] = chunkCache.get(chunkIds.get(i));
+
+            if (found[i] == null) {
+                missing.add(chunkIds.get(i));
+            }
         }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        return missing;
+    }
 
-        for (String chunk: fm.getChunkList()) {
-            ChunkModel cm = getChunk(chunk);
+    private void mergeFetchedChunks(ChunkModel[] found, List<ChunkModel> fetched, boolean useCache) {
+        Iterator<ChunkModel> it = fetched.iterator();
 
-            if (cm == null) {
-                return new ByteArrayOutputStream();
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] != null) {
+                continue;
             }
 
-            baos.write(cm.getData(), 0, cm.getLength());
+            found[i] = it.next();
+
+            if (found[i] != null && !found[i].isCorrupt() && chunkCache != null && useCache) {
+                chunkCache.put(found[i]);
+            }
+        }
+    }
+
+    private MultiGetRequest chunkRequest(List<String> chunkIds) {
+        MultiGetRequest request = new MultiGetRequest();
+
+        for (String chunkId : chunkIds) {
+            request.add(new MultiGetRequest.Item(CHUNK_INDEX_NAME, chunkId));
         }
 
-        return baos;
+        return request;
     }
 
-    public ByteArrayOutputStream getFile(File filename) {
-        SearchRequest sr = new SearchRequest();
+    private List<ChunkModel> readChunks(MultiGetResponse response) {
+        List<ChunkModel> chunks = new ArrayList<>(response.getResponses().length);
 
-        sr.indices(FILE_INDEX_NAME);
+        for (MultiGetItemResponse item : response.getResponses()) {
+            if (item.isFailed()) {
+                System.out.println("Error getting chunk " + item.getId() + ": " + item.getFailure().getMessage());
 
-        SearchSourceBuilder ssb = new SearchSourceBuilder();
+                chunks.add(null);
+            } else if (!item.getResponse().isExists()) {
+                System.out.println("Chunk not found: " + item.getId());
 
-        ssb.query(QueryBuilders.termQuery("filename", filename.getAbsoluteFile()));
+                chunks.add(null);
+            } else {
+                chunks.add(readChunk(item.getResponse()));
 
-        sr.source(ssb);
+                stats.addChunks("mget", 1);
+            }
+        }
+
+        return chunks;
+    }
 
-        SearchResponse searchResponse;
+    private ChunkModel readChunk(GetResponse response) {
+        long started = System.nanoTime();
 
         try {
-            searchResponse = client.search(sr, RequestOptions.DEFAULT);
+            BytesRef source = response.getSourceInternal().toBytesRef();
+
+            ChunkModel chunk = chunkMapper.readValue(source.bytes, source.offset, source.length, ChunkModel.class);
+
+            if (chunk.getCodec() != null && chunk.getCodec() != ChunkCodec.NONE) {
+                chunk.setData(chunk.getCodec().decompress(chunk.getData(), chunk.getLength()));
+                chunk.setCodec(null);
+            }
+
+            stats.recordClient("client.decode", System.nanoTime() - started);
+
+            return chunk;
         } catch (IOException e) {
-            System.out.println("Error getting list of files: " + e.getMessage());
+            System.out.println("Error converting chunk " + response.getId() + ": " + e.getMessage());
+
+            ChunkModel corrupt = new ChunkModel();
+
+            corrupt.setId(response.getId());
+            corrupt.setCorrupt(true);
+
+            return corrupt;
+        }
+    }
+
+    public InputStream openFile(String filename) {
+        return openFile(filename, 0, -1);
+    }
+
+    public boolean fileExists(String filename) {
+        return lookupFile(filename) != null;
+    }
+
+    public FileModel getFileInfo(String filename) {
+        FileMetadataCache.Entry entry = lookupFile(filename);
+
+        return entry != null ? entry.getFile() : null;
+    }
+
+    // Unlike getFileInfo, a failed lookup is thrown instead of looking like a missing file.
+    public FileModel findFileInfo(String filename) throws IOException {
+        FileMetadataCache.Entry entry = findFile(filename);
+
+        return entry != null ? entry.getFile() : null;
+    }
+
+    public InputStream openFile(String filename, long offset, long length) {
+        FileMetadataCache.Entry entry = lookupFile(filename);
 
-            return new ByteArrayOutputStream();
+        if (entry == null) {
+            System.out.println("File not found.");
+
+            return null;
         }
 
-        if (searchResponse.getHits().getTotalHits().value == 0) {
+        return openFile(entry.getFile(), offset, length);
+    }
+
+    public InputStream openFile(FileModel file) {
+        return openFile(file, 0, -1);
+    }
+
+    public InputStream openFile(FileModel file, long offset, long length) {
+        long start = rangeStart(file, offset);
+        long end = rangeEnd(file, start, length);
+
+        if (start >= end) {
+            return new ChunkInputStream(this, List.of(), 0, 0);
+        }
+
+        if (file.getPackOffset() != null) {
+            // A packed file is a single extent of its pack chunk.
+            return new ChunkInputStream(this, file.getChunkList(), (int) (file.getPackOffset() + start), end - start);
+        }
+
+        int first = chunkIndexAt(file, start);
+        int last = chunkIndexAt(file, end - 1);
+
+        return new ChunkInputStream(
+            this,
+            file.getChunkList().subList(first, last + 1),
+            (int) (start - chunkStart(file, first)),
+            end - start
+        );
+    }
+
+    private static long rangeStart(FileModel file, long offset) {
+        // A negative offset counts back from the end of the file, and a negative length reads to the end.
+        return offset < 0 ? Math.max(0, file.getFilesize() + offset) : Math.min(offset, file.getFilesize());
+    }
+
+    private static long rangeEnd(FileModel file, long start, long length) {
+        return length < 0 ? file.getFilesize() : Math.min(file.getFilesize(), start + length);
+    }
+
+    public long restoreFile(String filename, long offset, long length, Path target) throws IOException {
+        FileMetadataCache.Entry entry = lookupFile(filename);
+
+        if (entry == null) {
             System.out.println("File not found.");
 
-            return new ByteArrayOutputStream();
+            return -1;
         }
 
-        FileModel fm;
+        return restoreFile(entry.getFile(), offset, length, target);
+    }
+
+    public long restoreFile(FileModel file, long offset, long length, Path target) throws IOException {
+        // Write next to the target and rename once complete, so a failed restore never leaves a file with holes in it.
+        Path partial = target.resolveSibling(target.getFileName() + ".part");
 
         try {
-            fm = mapper.readValue(searchResponse.getHits().getHits()[0].getSourceAsString(), FileModel.class);
-        } catch (JsonProcessingException e) {
-            System.out.println("Error reading file record: " + e.getMessage());
+            long written = restoreTo(file, offset, length, partial);
+
+            Files.move(partial, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            return written;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(partial);
 
-            return new ByteArrayOutputStream();
+            throw e;
         }
+    }
+
+    private long restoreTo(FileModel file, long offset, long length, Path target) throws IOException {
+        long start = rangeStart(file, offset);
+        long end = rangeEnd(file, start, length);
+
+        long total = Math.max(0, end - start);
+
+        try (
+            RandomAccessFile output = new RandomAccessFile(target.toFile(), "rw");
+            FileChannel channel = output.getChannel()
+        ) {
+            // Size the file up front, so every chunk can be written at its own offset in whatever order it arrives.
+            output.setLength(total);
+
+            if (total == 0) {
+                return 0;
+            }
+
+            if (file.getPackOffset() != null) {
+                // A packed file is a single small extent, so it is just copied in order.
+                try (InputStream in = openFile(file, start, total)) {
+                    return in.transferTo(Channels.newOutputStream(channel));
+                }
+            }
+
+            int first = chunkIndexAt(file, start);
+            int last = chunkIndexAt(file, end - 1);
+
+            ChunkWindow window = new ChunkWindow(this, file.getChunkList(), first, last + 1, true, false);
+
+            ChunkWindow.Batch batch;
+
+            while ((batch = window.next()) != null) {
+                for (int i = 0; i < batch.chunks.size(); i++) {
+                    int index = batch.start + i;
+
+                    ChunkModel chunk = batch.chunks.get(i);
+
+                    if (chunk == null) {
+                        throw new IOException("Chunk not found: " + file.getChunkList().get(index));
+                    }
+
+                    if (chunk.isCorrupt()) {
+                        throw new IOException("Chunk could not be decoded: " + file.getChunkList().get(index));
+                    }
+
+                    // Clip the first and last chunks to the requested range.
+                    long chunkStart = chunkStart(file, index);
+                    long from = Math.max(start, chunkStart);
+                    long to = Math.min(end, chunkStart + chunk.getLength());
+
+                    ByteBuffer data = ByteBuffer.wrap(chunk.getData(), (int) (from - chunkStart), (int) (to - from));
+
+                    long position = from - start;
+
+                    while (data.hasRemaining()) {
+                        position += channel.write(data, position);
+                    }
+
+                    stats.addFileBytes(to - from);
+                }
+            }
+
+            return total;
+        }
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private static int chunkIndexAt(FileModel file, long position) {
+        if (file.getChunkOffsets() == null) {
+            // Files stored before chunk offsets were recorded always use fixed size chunks.
+            return (int) (position / file.getChunkSize());
+        }
+
+        int index = Collections.binarySearch(file.getChunkOffsets(), position);
+
+        return index >= 0 ? index : -index - 2;
+    }
 
-        for (String chunk: fm.getChunkList()) {
-            ChunkModel cm = getChunk(chunk);
+    private static long chunkStart(FileModel file, int index) {
+        if (file.getChunkOffsets() == null) {
+            return (long) index * file.getChunkSize();
+        }
+
+        return file.getChunkOffsets().get(index);
+    }
 
-            if (cm == null) {
-                return new ByteArrayOutputStream();
+    public long getFile(String filename, OutputStream out) throws IOException {
+        return getFile(filename, 0, -1, out);
+    }
+
+    public long getFile(String filename, long offset, long length, OutputStream out) throws IOException {
+        try (InputStream in = openFile(filename, offset, length)) {
+            if (in == null) {
+                return -1;
             }
 
-            baos.write(cm.getData(), 0, cm.getLength());
+            return in.transferTo(out);
         }
+    }
 
-        return baos;
+    public long getFile(File filename, OutputStream out) throws IOException {
+        return getFile(filename.getAbsolutePath(), out);
     }
 
-    public void integrityCheck() {
-        List<FileModel> files = getAllFiles();
+    public boolean integrityCheck() {
+        return integrityCheck(1, null);
+    }
+
+    public boolean integrityCheck(int workers, String reportPath) {
+        List<FileCheckResult> results;
+
+        try (Stream<FileModel> files = streamFiles(true)) {
+            results = new IntegrityChecker(this, workers).check(files);
+        } catch (UncheckedIOException e) {
+            System.out.println("Error getting list of files: " + e.getMessage());
 
-        for (FileModel file: files) {
-            System.out.printf("Checking %s... ", file.getFilename());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-            System.out.printf("Checking %d chunks... ", file.getChunkList().size());
+            return false;
+        }
 
-            for (String chunkId: file.getChunkList()) {
-                ChunkModel chunk = getChunk(chunkId);
+        long failed = results.stream().filter(x -> !x.isOk()).count();
 
-                if (chunk == null) {
-                    System.out.printf("ERROR!! Chunk %s id bad.", chunkId);
-                }
+        System.out.println(results.size() + " file(s) checked, " + failed + " with errors.");
+
+        if (reportPath != null && !reportPath.isEmpty()) {
+            Map<String, Object> report = new LinkedHashMap<>();
+
+            report.put("checked", results.size());
+            report.put("failed", failed);
+            report.put("files", results);
+
+            try {
+                mapper.writerWithDefaultPrettyPrinter().writeValue(new File(reportPath), report);
+            } catch (IOException e) {
+                System.out.println("Error writing integrity report: " + e.getMessage());
+
+                return false;
             }
 
-            System.out.println("Done.");
+            System.out.println("Integrity report written to " + reportPath + ".");
         }
+
+        return failed == 0;
     }
 }
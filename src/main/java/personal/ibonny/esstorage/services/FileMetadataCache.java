@@ -0,0 +1,80 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.FileModel;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class FileMetadataCache {
+    public static final long DEFAULT_TTL_MILLIS = 30000;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private volatile long ttlMillis;
+
+    public static class Entry {
+        private final String documentId;
+        private final FileModel file;
+        private final long expiresAt;
+
+        Entry(String documentId, FileModel file, long expiresAt) {
+            this.documentId = documentId;
+            this.file = file;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getDocumentId() {
+            return documentId;
+        }
+
+        public FileModel getFile() {
+            return file;
+        }
+    }
+
+    public FileMetadataCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+
+        if (ttlMillis <= 0) {
+            entries.clear();
+        }
+    }
+
+    public Entry get(String filename) {
+        Entry entry = entries.get(filename);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (System.currentTimeMillis() >= entry.expiresAt) {
+            entries.remove(filename, entry);
+
+            return null;
+        }
+
+        return entry;
+    }
+
+    public Entry put(String filename, String documentId, FileModel file) {
+        Entry entry = new Entry(documentId, file, System.currentTimeMillis() + ttlMillis);
+
+        if (ttlMillis > 0) {
+            entries.put(filename, entry);
+        }
+
+        return entry;
+    }
+
+    public void invalidate(String filename) {
+        entries.remove(filename);
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+}
@@ -0,0 +1,203 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.ChunkModel;
+import personal.ibonny.esstorage.models.FileCheckResult;
+import personal.ibonny.esstorage.models.FileModel;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+public class IntegrityChecker {
+    private final ESService esService;
+    private final int workers;
+
+    public IntegrityChecker(ESService esService, int workers) {
+        this.esService = esService;
+        this.workers = Math.max(1, workers);
+    }
+
+    public List<FileCheckResult> check(Stream<FileModel> files) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        // Bound the queued files, so a large index is not loaded into memory ahead of the workers.
+        Semaphore queued = new Semaphore(workers * 2);
+
+        List<Future<FileCheckResult>> futures = new ArrayList<>();
+
+        try {
+            for (FileModel file : (Iterable<FileModel>) files::iterator) {
+                queued.acquire();
+
+                futures.add(pool.submit(() -> {
+                    try {
+                        return checkFile(file);
+                    } catch (RuntimeException e) {
+                        // An unexpected answer for one file is reported with it, instead of ending the whole check.
+                        FileCheckResult result = new FileCheckResult(file);
+
+                        result.setError("Error checking file: " + e);
+
+                        return finish(result);
+                    } finally {
+                        queued.release();
+                    }
+                }));
+            }
+
+            List<FileCheckResult> results = new ArrayList<>(futures.size());
+
+            for (Future<FileCheckResult> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private FileCheckResult checkFile(FileModel file) {
+        FileCheckResult result = new FileCheckResult(file);
+
+        List<String> chunkIds = file.getChunkList() == null ? List.of() : file.getChunkList();
+
+        MessageDigest digest = file.getSha256() == null ? null : ChunkReader.sha256();
+
+        ChunkWindow window = new ChunkWindow(esService, chunkIds, 0, chunkIds.size(), false, true);
+
+        int index = 0;
+
+        boolean readable = true;
+
+        while (index < chunkIds.size()) {
+            ChunkWindow.Batch batch;
+
+            try {
+                batch = window.next();
+            } catch (IOException e) {
+                result.setError(e.getMessage());
+
+                return finish(result);
+            }
+
+            for (ChunkModel chunk : batch.chunks) {
+                String chunkId = chunkIds.get(index);
+
+                if (chunk == null) {
+                    result.getMissingChunks().add(chunkId);
+
+                    readable = false;
+                } else if (chunk.isCorrupt()) {
+                    result.getCorruptChunks().add(chunkId);
+
+                    readable = false;
+                } else {
+                    if (!verifyChunk(file, index, chunk, result)) {
+                        result.getCorruptChunks().add(chunkId);
+                    }
+
+                    int from = 0;
+                    int count = chunk.getLength();
+
+                    // A packed file only owns its own extent of the shared pack chunk.
+                    if (file.getPackOffset() != null) {
+                        from = (int) Math.min(file.getPackOffset(), chunk.getLength());
+                        count = (int) Math.min(file.getFilesize(), chunk.getLength() - from);
+                    }
+
+                    result.setStoredSize(result.getStoredSize() + count);
+
+                    if (digest != null) {
+                        digest.update(chunk.getData(), from, count);
+                    }
+                }
+
+                index++;
+            }
+        }
+
+        // Size and digest can only be compared when every chunk could be read.
+        if (readable) {
+            result.setSizeMismatch(result.getStoredSize() != file.getFilesize());
+
+            result.setDigestMismatch(digest != null && !ChunkReader.toHex(digest.digest()).equals(file.getSha256()));
+        }
+
+        return finish(result);
+    }
+
+    private static boolean verifyChunk(FileModel file, int index, ChunkModel chunk, FileCheckResult result) {
+        if (chunk.getData() == null || chunk.getData().length < chunk.getLength()) {
+            return false;
+        }
+
+        if (file.getChunkLengths() != null && (index >= file.getChunkLengths().size() || file.getChunkLengths().get(index) != chunk.getLength())) {
+            return false;
+        }
+
+        // Chunks stored before checksums were recorded can only be checked for presence and length.
+        if (chunk.getCrc32c() == null) {
+            return true;
+        }
+
+        if (ChunkReader.crc32c(chunk.getData(), chunk.getLength()) != chunk.getCrc32c()) {
+            return false;
+        }
+
+        result.setVerifiedChunks(result.getVerifiedChunks() + 1);
+
+        return true;
+    }
+
+    private static FileCheckResult finish(FileCheckResult result) {
+        result.setOk(result.getError() == null
+            && result.getMissingChunks().isEmpty()
+            && result.getCorruptChunks().isEmpty()
+            && !result.isSizeMismatch()
+            && !result.isDigestMismatch());
+
+        StringBuilder line = new StringBuilder(String.format("Checked %s (%d chunks)... ", result.getFilename(), result.getChunks()));
+
+        if (result.isOk()) {
+            line.append("OK.");
+        } else {
+            line.append("ERROR!!");
+
+            if (!result.getMissingChunks().isEmpty()) {
+                line.append(" ").append(result.getMissingChunks().size()).append(" missing chunk(s).");
+            }
+
+            if (!result.getCorruptChunks().isEmpty()) {
+                line.append(" ").append(result.getCorruptChunks().size()).append(" corrupt chunk(s).");
+            }
+
+            if (result.isSizeMismatch()) {
+                line.append(" Stored size ").append(result.getStoredSize()).append(" does not match ").append(result.getFilesize()).append(".");
+            }
+
+            if (result.isDigestMismatch()) {
+                line.append(" File digest does not match.");
+            }
+
+            if (result.getError() != null) {
+                line.append(" ").append(result.getError());
+            }
+        }
+
+        System.out.println(line);
+
+        return result;
+    }
+}
@@ -0,0 +1,64 @@
+package personal.ibonny.esstorage.services;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+public class LatencyHistogram {
+    // Eight buckets per doubling keeps every percentile within about 9% of the true value.
+    private static final int BUCKETS_PER_DOUBLING = 8;
+    private static final int BUCKETS = 40 * BUCKETS_PER_DOUBLING;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public void record(long nanos) {
+        long micros = Math.max(1, nanos / 1000);
+
+        int bucket = (int) Math.min(BUCKETS - 1, Math.floor(Math.log(micros) / Math.log(2) * BUCKETS_PER_DOUBLING));
+
+        counts.incrementAndGet(bucket);
+
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMillis() {
+        long n = count.get();
+
+        return n == 0 ? 0 : totalNanos.get() / 1e6 / n;
+    }
+
+    public double getMaxMillis() {
+        return maxNanos.get() / 1e6;
+    }
+
+    public double getPercentileMillis(double percentile) {
+        long n = count.get();
+
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(percentile / 100 * n);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank) {
+                // Report the upper edge of the bucket, but never more than the largest value actually seen.
+                return Math.min(Math.pow(2, (i + 1) / (double) BUCKETS_PER_DOUBLING) / 1000, getMaxMillis());
+            }
+        }
+
+        return getMaxMillis();
+    }
+}
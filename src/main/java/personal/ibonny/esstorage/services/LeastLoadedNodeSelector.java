@@ -0,0 +1,98 @@
+package personal.ibonny.esstorage.services;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.protocol.HttpCoreContext;
+import org.elasticsearch.client.Node;
+import org.elasticsearch.client.NodeSelector;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class LeastLoadedNodeSelector implements NodeSelector {
+    private static final String CONTEXT_NODE = "es-storage.node";
+
+    private final Map<HttpHost, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    // Responses the client also reports as node failures, which were already released when they arrived.
+    private final Map<HttpHost, AtomicInteger> answeredFailures = new ConcurrentHashMap<>();
+
+    @Override
+    public void select(Iterable<Node> nodes) {
+        int least = Integer.MAX_VALUE;
+
+        for (Node node : nodes) {
+            least = Math.min(least, load(node.getHost()));
+        }
+
+        // The client has already rotated the list, so ties between idle nodes are still spread round robin.
+        for (Iterator<Node> it = nodes.iterator(); it.hasNext(); ) {
+            if (load(it.next().getHost()) > least) {
+                it.remove();
+            }
+        }
+    }
+
+    public HttpRequestInterceptor requestInterceptor() {
+        return (request, context) -> {
+            HttpHost host = HttpCoreContext.adapt(context).getTargetHost();
+
+            if (host != null) {
+                counter(host).incrementAndGet();
+
+                context.setAttribute(CONTEXT_NODE, host);
+            }
+        };
+    }
+
+    public HttpResponseInterceptor responseInterceptor() {
+        return (response, context) -> {
+            Object host = context.getAttribute(CONTEXT_NODE);
+
+            if (host != null) {
+                context.removeAttribute(CONTEXT_NODE);
+
+                release((HttpHost) host);
+
+                int status = response.getStatusLine().getStatusCode();
+
+                if (status == 502 || status == 503 || status == 504) {
+                    answeredFailures.computeIfAbsent((HttpHost) host, x -> new AtomicInteger()).incrementAndGet();
+                }
+            }
+        };
+    }
+
+    public void failed(Node node) {
+        AtomicInteger answered = answeredFailures.get(node.getHost());
+
+        if (answered != null && answered.getAndUpdate(x -> Math.max(0, x - 1)) > 0) {
+            return;
+        }
+
+        // Failures without a response never reach the response interceptor, so the request is released here.
+        release(node.getHost());
+    }
+
+    private void release(HttpHost host) {
+        counter(host).accumulateAndGet(0, (current, x) -> Math.max(0, current - 1));
+    }
+
+    private int load(HttpHost host) {
+        AtomicInteger count = inFlight.get(host);
+
+        return count == null ? 0 : count.get();
+    }
+
+    private AtomicInteger counter(HttpHost host) {
+        return inFlight.computeIfAbsent(host, x -> new AtomicInteger());
+    }
+
+    @Override
+    public String toString() {
+        return "LEAST_LOADED";
+    }
+}
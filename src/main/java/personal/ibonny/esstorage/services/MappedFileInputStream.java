@@ -0,0 +1,118 @@
+package personal.ibonny.esstorage.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class MappedFileInputStream extends InputStream {
+    // A single mapping cannot exceed 2 GB, so larger files are mapped one window at a time.
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedByteBuffer window;
+    private long windowStart = 0;
+
+    public MappedFileInputStream(Path path) throws IOException {
+        this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        this.size = channel.size();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+
+        return window.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+
+        if (!fill()) {
+            return -1;
+        }
+
+        int numBytes = Math.min(len, window.remaining());
+
+        window.get(b, off, numBytes);
+
+        return numBytes;
+    }
+
+    @Override
+    public byte[] readNBytes(int len) throws IOException {
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+
+        // Size the array once and copy straight out of the mapping, instead of through the default 8 KB steps.
+        byte[] data = new byte[Math.min(len, available())];
+
+        int read = 0;
+
+        while (read < data.length) {
+            read += read(data, read, data.length - read);
+        }
+
+        return data;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = Math.max(0, Math.min(n, available()));
+
+        long target = position() + skipped;
+
+        if (window != null && target < windowStart + window.limit()) {
+            window.position((int) (target - windowStart));
+        } else {
+            window = null;
+            windowStart = target;
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, size - position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+
+        channel.close();
+    }
+
+    private long position() {
+        return window == null ? windowStart : windowStart + window.position();
+    }
+
+    private boolean fill() throws IOException {
+        if (window != null && window.hasRemaining()) {
+            return true;
+        }
+
+        long next = position();
+
+        if (next >= size) {
+            return false;
+        }
+
+        windowStart = next;
+
+        window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WINDOW_SIZE, size - windowStart));
+
+        return true;
+    }
+}
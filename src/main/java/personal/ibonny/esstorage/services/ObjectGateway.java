@@ -0,0 +1,380 @@
+package personal.ibonny.esstorage.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import personal.ibonny.esstorage.models.FileModel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ObjectGateway {
+    public static final int DEFAULT_PORT = 8080;
+
+    private static final int STOP_GRACE_SECONDS = 5;
+
+    private final ESService esService;
+    private final InetSocketAddress address;
+    private final int threads;
+    private final int queueSize;
+    private final int bufferSize;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final CountDownLatch stopped = new CountDownLatch(1);
+
+    private HttpServer server;
+    private ThreadPoolExecutor pool;
+
+    public ObjectGateway(ESService esService, InetSocketAddress address, int threads, int queueSize, int bufferSize) {
+        this.esService = esService;
+        this.address = address;
+        this.threads = Math.max(1, threads);
+        this.queueSize = Math.max(1, queueSize);
+        this.bufferSize = bufferSize;
+    }
+
+    public boolean start() {
+        try {
+            server = HttpServer.create(address, 0);
+        } catch (IOException e) {
+            System.out.println("Error listening on " + address + ": " + e.getMessage());
+
+            return false;
+        }
+
+        AtomicInteger workerCount = new AtomicInteger();
+
+        // Once every worker is busy and the queue is full, the accepting thread waits for a free slot,
+        // so a burst of clients slows down instead of piling up unbounded work.
+        pool = new ThreadPoolExecutor(
+            threads,
+            threads,
+            0,
+            TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueSize),
+            task -> new Thread(task, "gateway-worker-" + workerCount.incrementAndGet()),
+            (task, executor) -> {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("Gateway is stopping");
+                }
+
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+
+                    throw new RejectedExecutionException(e);
+                }
+            }
+        );
+
+        server.setExecutor(pool);
+        server.createContext("/", this::handle);
+        server.start();
+
+        System.out.println(String.format("Serving files on http://%s:%d/ with %d worker(s).",
+            server.getAddress().getHostString(),
+            server.getAddress().getPort(),
+            threads
+        ));
+
+        return true;
+    }
+
+    public void stop() {
+        if (server == null) {
+            return;
+        }
+
+        // Let requests that are already running finish, but accept no new ones.
+        server.stop(STOP_GRACE_SECONDS);
+
+        pool.shutdown();
+
+        try {
+            pool.awaitTermination(STOP_GRACE_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        stopped.countDown();
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void handle(HttpExchange exchange) {
+        try {
+            String filename = exchange.getRequestURI().getPath().substring(1);
+
+            if (filename.isEmpty()) {
+                respond(exchange, 400, "Please provide a filename in the path.");
+
+                return;
+            }
+
+            switch (exchange.getRequestMethod()) {
+                case "GET":
+                    get(exchange, filename, true);
+                    break;
+                case "HEAD":
+                    get(exchange, filename, false);
+                    break;
+                case "PUT":
+                    put(exchange, filename);
+                    break;
+                case "DELETE":
+                    delete(exchange, filename);
+                    break;
+                default:
+                    exchange.getResponseHeaders().set("Allow", "GET, HEAD, PUT, DELETE");
+
+                    respond(exchange, 405, "Method not allowed: " + exchange.getRequestMethod());
+            }
+        } catch (IOException | RuntimeException e) {
+            // Once the body has started there is no way to report an error, so the connection is just closed.
+            System.out.println("Error serving " + exchange.getRequestMethod() + " " + exchange.getRequestURI() + ": " + e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void get(HttpExchange exchange, String filename, boolean sendBody) throws IOException {
+        FileModel file;
+
+        try {
+            file = esService.findFileInfo(filename);
+        } catch (IOException e) {
+            respond(exchange, 503, "Could not look up file: " + filename + ": " + e.getMessage());
+
+            return;
+        }
+
+        if (file == null) {
+            respond(exchange, 404, "File not found: " + filename);
+
+            return;
+        }
+
+        long size = file.getFilesize();
+
+        Headers headers = exchange.getResponseHeaders();
+
+        headers.set("Accept-Ranges", "bytes");
+        headers.set("Content-Type", "application/octet-stream");
+
+        if (file.getSha256() != null) {
+            headers.set("ETag", "\"" + file.getSha256() + "\"");
+        }
+
+        long start = 0;
+        long end = size;
+        int status = 200;
+
+        String range = exchange.getRequestHeaders().getFirst("Range");
+
+        if (range != null) {
+            long[] bounds = parseRange(range, size);
+
+            if (bounds != null && bounds.length == 0) {
+                headers.set("Content-Range", "bytes */" + size);
+
+                exchange.sendResponseHeaders(416, -1);
+
+                return;
+            }
+
+            if (bounds != null) {
+                start = bounds[0];
+                end = bounds[1];
+                status = 206;
+
+                headers.set("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + size);
+            }
+        }
+
+        long length = end - start;
+
+        if (!sendBody) {
+            headers.set("Content-Length", Long.toString(length));
+
+            exchange.sendResponseHeaders(status, -1);
+
+            return;
+        }
+
+        if (length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+
+            return;
+        }
+
+        try (
+            InputStream in = esService.openFile(file, start, length);
+            OutputStream out = exchange.getResponseBody()
+        ) {
+            exchange.sendResponseHeaders(status, length);
+
+            in.transferTo(out);
+        }
+    }
+
+    static long[] parseRange(String header, long size) {
+        // Only a single byte range is served. Anything else falls back to the whole file, which HTTP allows.
+        if (!header.startsWith("bytes=") || header.contains(",")) {
+            return null;
+        }
+
+        String spec = header.substring("bytes=".length()).trim();
+
+        int dash = spec.indexOf('-');
+
+        if (dash < 0) {
+            return null;
+        }
+
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+
+        try {
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+
+                // "bytes=-N" asks for the last N bytes.
+                long suffix = Long.parseLong(last);
+
+                if (suffix <= 0 || size == 0) {
+                    return new long[0];
+                }
+
+                return new long[] { Math.max(0, size - suffix), size };
+            }
+
+            long start = Long.parseLong(first);
+
+            if (start >= size) {
+                return new long[0];
+            }
+
+            long end = last.isEmpty() ? size : Math.min(size, Long.parseLong(last) + 1);
+
+            if (end <= start) {
+                return null;
+            }
+
+            return new long[] { start, end };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void put(HttpExchange exchange, String filename) throws IOException {
+        FileModel existing;
+
+        try {
+            existing = esService.findFileInfo(filename);
+        } catch (IOException e) {
+            respond(exchange, 503, "Could not look up file: " + filename + ": " + e.getMessage());
+
+            return;
+        }
+
+        if (existing != null) {
+            respond(exchange, 409, "File already exists: " + filename);
+
+            return;
+        }
+
+        boolean stored;
+
+        try (InputStream in = exchange.getRequestBody()) {
+            stored = esService.storeStream(in, filename, bufferSize);
+        }
+
+        FileModel file = stored ? esService.getFileInfo(filename) : null;
+
+        if (file == null) {
+            respond(exchange, 500, "Could not store file: " + filename);
+
+            return;
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        result.put("filename", file.getFilename());
+        result.put("filesize", file.getFilesize());
+        result.put("chunks", file.getChunkList().size());
+        result.put("sha256", file.getSha256());
+
+        byte[] body = mapper.writeValueAsBytes(result);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+
+        exchange.sendResponseHeaders(201, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private void delete(HttpExchange exchange, String filename) throws IOException {
+        FileModel existing;
+
+        try {
+            existing = esService.findFileInfo(filename);
+        } catch (IOException e) {
+            respond(exchange, 503, "Could not look up file: " + filename + ": " + e.getMessage());
+
+            return;
+        }
+
+        if (existing == null) {
+            respond(exchange, 404, "File not found: " + filename);
+
+            return;
+        }
+
+        if (!esService.delete(filename)) {
+            respond(exchange, 500, "Could not delete file: " + filename);
+
+            return;
+        }
+
+        exchange.sendResponseHeaders(204, -1);
+    }
+
+    private static void respond(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+
+        // A HEAD response carries the status and headers only.
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+
+            return;
+        }
+
+        exchange.sendResponseHeaders(status, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
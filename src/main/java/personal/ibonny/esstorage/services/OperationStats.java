@@ -0,0 +1,339 @@
+package personal.ibonny.esstorage.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.elasticsearch.client.HttpAsyncResponseConsumerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OperationStats {
+    private static final String CONTEXT_OPERATION = "es-storage.operation";
+    private static final String CONTEXT_STARTED = "es-storage.started";
+    private static final String CONTEXT_SENT = "es-storage.sent";
+
+    private final long started = System.nanoTime();
+
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    private final Map<String, Operation> operations = new ConcurrentSkipListMap<>();
+
+    private final AtomicLong fileBytes = new AtomicLong();
+    private final AtomicLong transportErrors = new AtomicLong();
+
+    public static class Operation {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LatencyHistogram firstByte = new LatencyHistogram();
+
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+        private final AtomicLong chunks = new AtomicLong();
+        private final AtomicLong bytesSent = new AtomicLong();
+        private final AtomicLong bytesReceived = new AtomicLong();
+    }
+
+    public Operation operation(String name) {
+        return operations.computeIfAbsent(name, x -> new Operation());
+    }
+
+    public void recordClient(String name, long nanos) {
+        operation(name).latency.record(nanos);
+    }
+
+    public void addRetries(String name, long count) {
+        operation(name).retries.addAndGet(count);
+    }
+
+    public void addChunks(String name, long count) {
+        operation(name).chunks.addAndGet(count);
+    }
+
+    public void addFileBytes(long bytes) {
+        fileBytes.addAndGet(bytes);
+    }
+
+    public HttpRequestInterceptor requestInterceptor() {
+        return (request, context) -> {
+            long sent = 0;
+
+            if (request instanceof HttpEntityEnclosingRequest && ((HttpEntityEnclosingRequest) request).getEntity() != null) {
+                sent = Math.max(0, ((HttpEntityEnclosingRequest) request).getEntity().getContentLength());
+            }
+
+            context.setAttribute(CONTEXT_OPERATION, classify(request.getRequestLine().getMethod(), request.getRequestLine().getUri()));
+            context.setAttribute(CONTEXT_STARTED, System.nanoTime());
+            context.setAttribute(CONTEXT_SENT, sent);
+        };
+    }
+
+    public HttpAsyncResponseConsumerFactory responseConsumerFactory() {
+        return () -> new CountingConsumer(HttpAsyncResponseConsumerFactory.DEFAULT.createHttpAsyncResponseConsumer());
+    }
+
+    static String classify(String method, String uri) {
+        int query = uri.indexOf('?');
+
+        String path = query < 0 ? uri : uri.substring(0, query);
+
+        if (path.endsWith("/_bulk")) {
+            return "bulk";
+        }
+
+        if (path.endsWith("/_mget")) {
+            return "mget";
+        }
+
+        if (path.contains("/_search/scroll")) {
+            return "scroll";
+        }
+
+        if (path.endsWith("/_search")) {
+            return "search";
+        }
+
+        if (path.endsWith("/_count")) {
+            return "count";
+        }
+
+        if (path.contains("/_update/")) {
+            return "update";
+        }
+
+        if (path.contains("/_doc/") || path.contains("/_create/")) {
+            switch (method) {
+                case "GET":
+                case "HEAD":
+                    return "get";
+                case "DELETE":
+                    return "delete";
+                default:
+                    return "index";
+            }
+        }
+
+        if (path.startsWith("/_cluster")) {
+            return "cluster";
+        }
+
+        return "indices";
+    }
+
+    private void completed(HttpContext context, long firstByte, long received, int status) {
+        Object name = context.getAttribute(CONTEXT_OPERATION);
+
+        if (name == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        long requestStarted = (long) context.getAttribute(CONTEXT_STARTED);
+
+        Operation operation = operation((String) name);
+
+        operation.latency.record(now - requestStarted);
+        operation.firstByte.record(firstByte - requestStarted);
+
+        operation.bytesSent.addAndGet((long) context.getAttribute(CONTEXT_SENT));
+        operation.bytesReceived.addAndGet(received);
+
+        // Not found is how existence checks answer, so it is not counted as an error.
+        if (status >= 400 && status != 404) {
+            operation.errors.incrementAndGet();
+        }
+    }
+
+    private class CountingConsumer implements HttpAsyncResponseConsumer<HttpResponse> {
+        private final HttpAsyncResponseConsumer<HttpResponse> delegate;
+
+        private long firstByte;
+        private long received;
+        private int status;
+
+        CountingConsumer(HttpAsyncResponseConsumer<HttpResponse> delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void responseReceived(HttpResponse response) throws IOException, HttpException {
+            firstByte = System.nanoTime();
+
+            status = response.getStatusLine().getStatusCode();
+
+            delegate.responseReceived(response);
+        }
+
+        @Override
+        public void consumeContent(ContentDecoder decoder, IOControl control) throws IOException {
+            delegate.consumeContent(new ContentDecoder() {
+                @Override
+                public int read(ByteBuffer dst) throws IOException {
+                    int read = decoder.read(dst);
+
+                    if (read > 0) {
+                        received += read;
+                    }
+
+                    return read;
+                }
+
+                @Override
+                public boolean isCompleted() {
+                    return decoder.isCompleted();
+                }
+            }, control);
+        }
+
+        @Override
+        public void responseCompleted(HttpContext context) {
+            completed(context, firstByte, received, status);
+
+            delegate.responseCompleted(context);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            transportErrors.incrementAndGet();
+
+            delegate.failed(e);
+        }
+
+        @Override
+        public Exception getException() {
+            return delegate.getException();
+        }
+
+        @Override
+        public HttpResponse getResult() {
+            return delegate.getResult();
+        }
+
+        @Override
+        public boolean isDone() {
+            return delegate.isDone();
+        }
+
+        @Override
+        public void close() throws IOException {
+            delegate.close();
+        }
+
+        @Override
+        public boolean cancel() {
+            return delegate.cancel();
+        }
+    }
+
+    public Map<String, Object> summary() {
+        double seconds = Math.max(1, System.nanoTime() - started) / 1e9;
+
+        long sent = 0;
+        long received = 0;
+
+        Map<String, Object> ops = new LinkedHashMap<>();
+
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation operation = entry.getValue();
+
+            sent += operation.bytesSent.get();
+            received += operation.bytesReceived.get();
+
+            Map<String, Object> op = new LinkedHashMap<>();
+
+            op.put("calls", operation.latency.getCount());
+            op.put("errors", operation.errors.get());
+            op.put("retries", operation.retries.get());
+            op.put("chunks", operation.chunks.get());
+            op.put("bytesSent", operation.bytesSent.get());
+            op.put("bytesReceived", operation.bytesReceived.get());
+            op.put("latencyMillis", percentiles(operation.latency));
+
+            if (operation.firstByte.getCount() > 0) {
+                op.put("firstByteMillis", percentiles(operation.firstByte));
+            }
+
+            ops.put(entry.getKey(), op);
+        }
+
+        Map<String, Object> summary = new LinkedHashMap<>();
+
+        summary.put("elapsedSeconds", seconds);
+        summary.put("fileBytes", fileBytes.get());
+        summary.put("fileMBPerSecond", fileBytes.get() / seconds / (1024 * 1024));
+        summary.put("bytesSent", sent);
+        summary.put("bytesReceived", received);
+        summary.put("wireMBPerSecond", (sent + received) / seconds / (1024 * 1024));
+        summary.put("transportErrors", transportErrors.get());
+        summary.put("operations", ops);
+
+        return summary;
+    }
+
+    private static Map<String, Object> percentiles(LatencyHistogram histogram) {
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        result.put("p50", histogram.getPercentileMillis(50));
+        result.put("p95", histogram.getPercentileMillis(95));
+        result.put("p99", histogram.getPercentileMillis(99));
+        result.put("mean", histogram.getMeanMillis());
+        result.put("max", histogram.getMaxMillis());
+
+        return result;
+    }
+
+    public void printSummary() {
+        Map<String, Object> summary = summary();
+
+        System.out.println(String.format("\n%-14s %8s %7s %8s %9s %10s %10s %10s %12s %10s %10s",
+            "Operation", "Calls", "Errors", "Retries", "Chunks", "p50 ms", "p95 ms", "p99 ms", "1st byte ms", "Sent MB", "Recv MB"));
+
+        for (Map.Entry<String, Operation> entry : operations.entrySet()) {
+            Operation operation = entry.getValue();
+
+            System.out.println(String.format("%-14s %8d %7d %8d %9d %10.2f %10.2f %10.2f %12s %10.2f %10.2f",
+                entry.getKey(),
+                operation.latency.getCount(),
+                operation.errors.get(),
+                operation.retries.get(),
+                operation.chunks.get(),
+                operation.latency.getPercentileMillis(50),
+                operation.latency.getPercentileMillis(95),
+                operation.latency.getPercentileMillis(99),
+                operation.firstByte.getCount() > 0 ? String.format("%.2f", operation.firstByte.getPercentileMillis(50)) : "-",
+                operation.bytesSent.get() / (1024.0 * 1024),
+                operation.bytesReceived.get() / (1024.0 * 1024)
+            ));
+        }
+
+        System.out.println(String.format("\n%d bytes of file data in %.2f s (%.2f MB/s), %.2f MB/s on the wire, %d transport error(s).\n",
+            summary.get("fileBytes"),
+            summary.get("elapsedSeconds"),
+            summary.get("fileMBPerSecond"),
+            summary.get("wireMBPerSecond"),
+            summary.get("transportErrors")
+        ));
+    }
+
+    public void writeJson(String path) {
+        try {
+            if (path.equals("-")) {
+                System.out.println(mapper.writerWithDefaultPrettyPrinter().writeValueAsString(summary()));
+            } else {
+                mapper.writerWithDefaultPrettyPrinter().writeValue(new File(path), summary());
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing stats to " + path + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package personal.ibonny.esstorage.services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PackWriter {
+    public static final int DEFAULT_PACK_SIZE = 262144;
+
+    private final ESService esService;
+    private final int packSize;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong packs = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private Pack current = new Pack();
+
+    public PackWriter(ESService esService, int packSize) {
+        this.esService = esService;
+        this.packSize = packSize > 0 ? packSize : DEFAULT_PACK_SIZE;
+    }
+
+    public void add(File file, String destination) throws IOException {
+        byte[] data = Files.readAllBytes(file.toPath());
+
+        MessageDigest digest = ChunkReader.sha256();
+
+        digest.update(data);
+
+        String sha256 = ChunkReader.toHex(digest.digest());
+
+        Pack full = null;
+
+        synchronized (this) {
+            // Close the open pack first if this file would push it over the limit.
+            if (current.size() > 0 && current.size() + data.length > packSize) {
+                full = current;
+
+                current = new Pack();
+            }
+
+            current.add(data, destination, sha256);
+        }
+
+        // Packs are written outside the lock, so the other workers keep filling the next one.
+        if (full != null) {
+            write(full);
+        }
+    }
+
+    public void flush() {
+        Pack last;
+
+        synchronized (this) {
+            last = current;
+
+            current = new Pack();
+        }
+
+        if (last.size() > 0) {
+            write(last);
+        }
+    }
+
+    private void write(Pack pack) {
+        int stored = esService.storePack(pack.data.toByteArray(), pack.destinations, pack.offsets, pack.lengths, pack.digests);
+
+        packs.incrementAndGet();
+
+        files.addAndGet(stored);
+        bytes.addAndGet(pack.size());
+
+        failed.addAndGet(pack.destinations.size() - stored);
+    }
+
+    public long getFiles() {
+        return files.get();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getPacks() {
+        return packs.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    private static class Pack {
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        private final List<String> destinations = new ArrayList<>();
+        private final List<Long> offsets = new ArrayList<>();
+        private final List<Integer> lengths = new ArrayList<>();
+        private final List<String> digests = new ArrayList<>();
+
+        private void add(byte[] bytes, String destination, String sha256) {
+            destinations.add(destination);
+            offsets.add((long) data.size());
+            lengths.add(bytes.length);
+            digests.add(sha256);
+
+            data.writeBytes(bytes);
+        }
+
+        private int size() {
+            return data.size();
+        }
+    }
+}
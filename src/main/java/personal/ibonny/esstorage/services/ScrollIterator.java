@@ -0,0 +1,107 @@
+package personal.ibonny.esstorage.services;
+
+import org.elasticsearch.action.search.ClearScrollRequest;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollRequest;
+import org.elasticsearch.client.RequestOptions;
+import org.elasticsearch.client.RestHighLevelClient;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.search.SearchHit;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+public class ScrollIterator<T> implements Iterator<T>, Closeable {
+    private final RestHighLevelClient client;
+    private final RequestOptions options;
+    private final SearchRequest request;
+    private final TimeValue keepAlive;
+    private final Function<SearchHit, T> converter;
+
+    private String scrollId = null;
+    private boolean exhausted = false;
+
+    private SearchHit[] hits = new SearchHit[0];
+    private int position = 0;
+
+    public ScrollIterator(RestHighLevelClient client, RequestOptions options, SearchRequest request, TimeValue keepAlive, Function<SearchHit, T> converter) {
+        this.client = client;
+        this.options = options;
+        this.keepAlive = keepAlive;
+        this.request = request.scroll(keepAlive);
+        this.converter = converter;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (position >= hits.length) {
+            if (exhausted) {
+                return false;
+            }
+
+            fetch();
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        return converter.apply(hits[position++]);
+    }
+
+    private void fetch() {
+        SearchResponse response;
+
+        try {
+            if (scrollId == null) {
+                response = client.search(request, options);
+            } else {
+                response = client.scroll(new SearchScrollRequest(scrollId).scroll(keepAlive), options);
+            }
+        } catch (IOException e) {
+            close();
+
+            throw new UncheckedIOException(e);
+        }
+
+        scrollId = response.getScrollId();
+
+        hits = response.getHits().getHits();
+        position = 0;
+
+        if (hits.length == 0) {
+            close();
+        }
+    }
+
+    @Override
+    public void close() {
+        exhausted = true;
+
+        if (scrollId == null) {
+            return;
+        }
+
+        ClearScrollRequest clear = new ClearScrollRequest();
+
+        clear.addScrollId(scrollId);
+
+        scrollId = null;
+
+        try {
+            client.clearScroll(clear, options);
+        } catch (IOException e) {
+            System.out.println("Error clearing scroll: " + e.getMessage());
+        }
+    }
+}
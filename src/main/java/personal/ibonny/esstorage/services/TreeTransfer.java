@@ -0,0 +1,210 @@
+package personal.ibonny.esstorage.services;
+
+import personal.ibonny.esstorage.models.FileModel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class TreeTransfer {
+    private final ESService esService;
+    private final int workers;
+
+    private final long packThreshold;
+    private final int packSize;
+
+    private final AtomicLong files = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public TreeTransfer(ESService esService, int workers) {
+        this(esService, workers, 0, PackWriter.DEFAULT_PACK_SIZE);
+    }
+
+    public TreeTransfer(ESService esService, int workers, long packThreshold, int packSize) {
+        this.esService = esService;
+        this.workers = Math.max(1, workers);
+        this.packThreshold = packThreshold;
+        this.packSize = packSize;
+    }
+
+    public boolean storeTree(String directory, String destination, ToIntFunction<File> bufferSize, boolean resume) {
+        Path root = Paths.get(directory).toAbsolutePath().normalize();
+
+        if (!Files.isDirectory(root)) {
+            System.out.println("\n   Error, not a directory: " + root + "\n");
+
+            return false;
+        }
+
+        String base = destination == null || destination.isEmpty() ? root.getFileName().toString() : trimSlashes(destination);
+
+        // Files below the threshold share pack chunks, instead of costing a chunk and a round trip each.
+        PackWriter packer = packThreshold > 0 ? new PackWriter(esService, packSize) : null;
+
+        long start = System.nanoTime();
+
+        try (Stream<Path> paths = Files.walk(root)) {
+            run(paths.filter(Files::isRegularFile), path -> {
+                String name = base + "/" + root.relativize(path).toString().replace(File.separatorChar, '/');
+
+                if (esService.fileExists(name)) {
+                    skipped.incrementAndGet();
+
+                    return;
+                }
+
+                File file = path.toFile();
+
+                if (packer != null && file.length() < packThreshold) {
+                    try {
+                        packer.add(file, name);
+                    } catch (IOException e) {
+                        System.out.println("Error reading " + file + ": " + e.getMessage());
+
+                        failed.incrementAndGet();
+                    }
+
+                    return;
+                }
+
+                if (esService.storeNewFile(file.getPath(), name, bufferSize.applyAsInt(file), resume)) {
+                    files.incrementAndGet();
+                    bytes.addAndGet(file.length());
+                } else {
+                    failed.incrementAndGet();
+                }
+            });
+        } catch (IOException | UncheckedIOException e) {
+            System.out.println("Error walking " + root + ": " + e.getMessage());
+
+            return false;
+        } finally {
+            if (packer != null) {
+                packer.flush();
+            }
+        }
+
+        if (packer != null) {
+            files.addAndGet(packer.getFiles());
+            bytes.addAndGet(packer.getBytes());
+            failed.addAndGet(packer.getFailed());
+
+            System.out.println(String.format("Packed %d small file(s) into %d chunk(s).", packer.getFiles(), packer.getPacks()));
+        }
+
+        report("Stored", start);
+
+        return failed.get() == 0;
+    }
+
+    public boolean getTree(String prefix, String directory) {
+        Path root = Paths.get(directory).toAbsolutePath().normalize();
+
+        long start = System.nanoTime();
+
+        try (Stream<FileModel> models = esService.streamFiles(prefix, true)) {
+            run(models, file -> {
+                Path target = root.resolve(file.getFilename()).normalize();
+
+                if (!target.startsWith(root)) {
+                    System.out.println("Skipping " + file.getFilename() + ", it would be written outside " + root + ".");
+
+                    skipped.incrementAndGet();
+
+                    return;
+                }
+
+                try {
+                    Files.createDirectories(target.getParent());
+
+                    bytes.addAndGet(esService.restoreFile(file, 0, -1, target));
+
+                    files.incrementAndGet();
+                } catch (IOException e) {
+                    System.out.println("Error writing out " + file.getFilename() + ": " + e.getMessage());
+
+                    failed.incrementAndGet();
+                }
+            });
+        } catch (UncheckedIOException e) {
+            System.out.println("Error getting list of files: " + e.getMessage());
+
+            return false;
+        }
+
+        report("Wrote out", start);
+
+        return failed.get() == 0;
+    }
+
+    private <T> void run(Stream<T> items, Task<T> task) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+        // Bound the queued work, so a large tree is not walked into memory ahead of the workers.
+        Semaphore queued = new Semaphore(workers * 2);
+
+        try {
+            for (T item : (Iterable<T>) items::iterator) {
+                queued.acquireUninterruptibly();
+
+                pool.execute(() -> {
+                    try {
+                        task.run(item);
+                    } catch (RuntimeException e) {
+                        System.out.println("Error transferring file: " + e.getMessage());
+
+                        failed.incrementAndGet();
+                    } finally {
+                        queued.release();
+                    }
+                });
+            }
+
+            pool.shutdown();
+
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private void report(String action, long start) {
+        double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format("%s %d file(s) with %d bytes in %.1f s (%.1f files/s, %.2f MB/s), %d skipped, %d failed.",
+            action,
+            files.get(),
+            bytes.get(),
+            seconds,
+            files.get() / seconds,
+            bytes.get() / seconds / (1024 * 1024),
+            skipped.get(),
+            failed.get()
+        ));
+    }
+
+    private static String trimSlashes(String name) {
+        return Stream.of(name.split("/"))
+            .filter(x -> !x.isEmpty())
+            .collect(Collectors.joining("/"));
+    }
+
+    private interface Task<T> {
+        void run(T item);
+    }
+}